@@ -5,10 +5,10 @@ import android.accounts.AccountManager;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncResult;
 import android.database.Cursor;
@@ -27,9 +27,12 @@ import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Sets;
 import com.google.gson.JsonObject;
+import com.larkery.simpleorgsync.cal.parse.Document;
 import com.larkery.simpleorgsync.cal.parse.Edit;
 import com.larkery.simpleorgsync.cal.parse.Heading;
 import com.larkery.simpleorgsync.cal.parse.OrgParser;
+import com.larkery.simpleorgsync.cal.parse.Outline;
+import com.larkery.simpleorgsync.cal.parse.OutlinePaths;
 import com.larkery.simpleorgsync.cal.parse.Timestamp;
 import com.larkery.simpleorgsync.lib.JSONPrefs;
 import com.larkery.simpleorgsync.lib.Log;
@@ -37,24 +40,61 @@ import com.larkery.simpleorgsync.lib.Log;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final String TAG = "CalSyncAdapter";
     private Timestamp.Type ttype = Timestamp.Type.ACTIVE;
     private TimeZone calTimezone = TimeZone.getDefault();
+    // how many events to ask the provider for at a time
+    private int eventPageSize = DEFAULT_EVENT_PAGE_SIZE;
+
+    // outlines of the files as they were parsed in the last sync which was applied, by uri
+    private static final Map<String, Outline.Snapshot> snapshots = new ConcurrentHashMap<>();
+    // the headings of files as they were written in the last sync, by uri
+    private static final Map<String, WrittenFile> writtenFiles = new ConcurrentHashMap<>();
+
+    /**
+     * A file written by a sync, with its headings moved over to what was written.
+     * The next sync can use them instead of reading the file again, if the file
+     * still looks the same and would be parsed the same way.
+     */
+    private static class WrittenFile {
+        final long length;
+        final long lastModified;
+        final Set<OrgParser.Block> blocks;
+        final OrgFile contents;
+        final List<Heading> headings;
+
+        WrittenFile(final DocumentFile file, final Set<OrgParser.Block> blocks,
+                    final OrgFile contents, final List<Heading> headings) {
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+            this.blocks = EnumSet.copyOf(blocks);
+            this.contents = contents;
+            this.headings = headings;
+        }
+
+        boolean isCurrent(final DocumentFile file, final Set<OrgParser.Block> blocks) {
+            return lastModified != 0 &&
+                    file.lastModified() == lastModified &&
+                    file.length() == length &&
+                    this.blocks.equals(blocks);
+        }
+    }
 
     public CalSyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
@@ -72,15 +112,21 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
 
     public static void collectOrgFiles(DocumentFile rootFile,
                                        final Set<DocumentFile> output,
-                                       boolean ignoreConflicts) {
+                                       boolean ignoreConflicts,
+                                       boolean excludeArchives) {
         if (rootFile.isDirectory()) {
             for (DocumentFile child : rootFile.listFiles()) {
-                collectOrgFiles(child, output, ignoreConflicts);
+                collectOrgFiles(child, output, ignoreConflicts, excludeArchives);
             }
         } else if (rootFile.isFile() && rootFile.getName().endsWith(".org")
                    && (ignoreConflicts || !rootFile.getName().contains(".sync-conflict"))
         ) {
-            output.add(rootFile);
+            if (excludeArchives && rootFile.getName().endsWith("_archive.org")) {
+                Log.i(TAG, "Excluding archive file " + rootFile.getName() +
+                        ", skipping " + rootFile.length() + " bytes");
+            } else {
+                output.add(rootFile);
+            }
         }
     }
 
@@ -110,28 +156,77 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
 
         final DocumentFile agendaRootFile = docFile(getContext(), agendaRoot);
         collectOrgFiles(agendaRootFile, distinctAgendaFiles,
-                prefs.getBoolean("ignore_syncthing_conflicts", true));
-        final Map<DocumentFile, StringBuffer> fileContents = new HashMap<>();
+                prefs.getBoolean("ignore_syncthing_conflicts", true),
+                prefs.getBoolean("exclude_archive_files", false));
+        final Map<DocumentFile, OrgFile> fileContents = new HashMap<>();
         final ListMultimap<DocumentFile, Heading> headingsByFile = ArrayListMultimap.create();
         final ListMultimap<String, Heading> headingsByCategory = ArrayListMultimap.create();
 
+        boolean readOnly = prefs.getBoolean("read_only", false);
+        Log.i(TAG, readOnly ? "Read-only mode" : "Read-write mode");
+
+        // archived headings never become events, so there is no point parsing them
+        final Set<OrgParser.Block> blocks = EnumSet.of(OrgParser.Block.ARCHIVE);
+        if (prefs.getBoolean("skip_src_blocks", true)) blocks.add(OrgParser.Block.SRC);
+        if (prefs.getBoolean("skip_example_blocks", true)) blocks.add(OrgParser.Block.EXAMPLE);
+        if (prefs.getBoolean("skip_logbook", true)) blocks.add(OrgParser.Block.LOGBOOK);
+
+        // headings which may not be as they were at the last sync, or null if that isn't known
+        final Set<Heading> changedInOrg = readOnly ? null :
+                Collections.newSetFromMap(new IdentityHashMap<Heading, Boolean>());
+        final Map<DocumentFile, Outline.Snapshot> newSnapshots = new HashMap<>();
 
         // load it all
         for (final DocumentFile df : distinctAgendaFiles) {
             try {
                 final long now = System.currentTimeMillis();
                 Log.i(TAG, "Parsing " + df.getName());
-                final StringBuffer sb = readFile(df.getUri());
-                fileContents.put(df, sb);
                 String category = df.getName();
                 if (category.endsWith(".org")) {
                     category = category.substring(0, category.length() - 4);
                 }
-                final List<Heading> headings = OrgParser.parse(sb, TimeZone.getTimeZone("Europe/London"), category);
-                headingsByFile.putAll(df, headings);
+                final int count;
+                final OrgParser.Skip skip = new OrgParser.Skip(blocks);
+                if (readOnly) {
+                    // nothing will be written back, so only the headings which
+                    // go into a calendar need to be kept
+                    final CalendarHeadings calendarHeadings = new CalendarHeadings(df.getUri().toString());
+                    try (final OrgBytes bytes = OrgBytes.open(getContext().getContentResolver(), df.getUri(), MAX_FILE)) {
+                        OrgParser.parse(bytes.buffer, TimeZone.getTimeZone("Europe/London"), category, skip, calendarHeadings);
+                    }
+                    headingsByFile.putAll(df, calendarHeadings.headings);
+                    count = calendarHeadings.count;
+                } else {
+                    final WrittenFile written = writtenFiles.remove(df.getUri().toString());
+                    final OrgFile contents;
+                    final List<Heading> headings;
+                    if (written != null && written.isCurrent(df, blocks)) {
+                        Log.i(TAG, df.getName() + " is as the last sync wrote it");
+                        contents = written.contents;
+                        headings = written.headings;
+                    } else {
+                        contents = OrgFile.read(getContext().getContentResolver(), df.getUri());
+                        headings = OrgParser.parseInParallel(contents.text, TimeZone.getTimeZone("Europe/London"), category, skip);
+                    }
+                    fileContents.put(df, contents);
+                    headingsByFile.putAll(df, headings);
+                    count = headings.size();
+
+                    final Outline outline = new Outline(headings);
+                    final Outline.Snapshot previous = snapshots.remove(df.getUri().toString());
+                    if (previous == null) {
+                        changedInOrg.addAll(headings);
+                    } else {
+                        final int before = changedInOrg.size();
+                        outline.changedSince(previous, changedInOrg);
+                        Log.i(TAG, (changedInOrg.size() - before) + " headings changed since last sync");
+                    }
+                    newSnapshots.put(df, outline.snapshot());
+                }
                 final long delta = System.currentTimeMillis() - now;
-                Log.i(TAG, df.getName() + " contains " + headings.size() + " headings" +
-                        ", parsed in " + delta +"ms");
+                Log.i(TAG, df.getName() + " contains " + count + " headings" +
+                        ", parsed in " + delta +"ms" +
+                        ", skipped " + skip.getSkipped() + " characters");
             } catch (IOException ex) {
                 Log.e(TAG, "Reading " + df.getName(), ex);
             }
@@ -140,28 +235,35 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
         // identify all the categories that exist and contain relevant stuff
         final Set<String> categories = new HashSet<>();
         for (final Heading h : headingsByFile.values()) {
-            if (h.hasTag("ARCHIVE")) continue; // we don't care about these esp.
-            for (Timestamp ts : h.getTimestamps()) {
-                if (ts.getType() == Timestamp.Type.ACTIVE) {
-                    categories.add(h.getCategory());
-                    // store relevant headings for sync
-                    headingsByCategory.put(h.getCategory(), h);
-                    break;
-                }
+            if (isCalendarHeading(h)) {
+                categories.add(h.getCategory());
+                // store relevant headings for sync
+                headingsByCategory.put(h.getCategory(), h);
             }
         }
 
-        boolean readOnly = prefs.getBoolean("read_only", false);
-        Log.i(TAG, readOnly ? "Read-only mode" : "Read-write mode");
         final Map<String, Long> calendarIDs;
+        final Set<Long> newCalendars = new HashSet<>();
 
         try {
-            calendarIDs = createCalendars(account, calendarsURI, categories, provider, readOnly);
+            calendarIDs = createCalendars(account, calendarsURI, categories, provider, readOnly, newCalendars);
         } catch (RemoteException e) {
             Log.e(TAG, "Unable to create calendars", e);
             return;
         }
 
+        final ShadowStore shadowStore = ShadowStore.get(getContext());
+        shadowStore.retainCalendars(account.name, calendarIDs.values());
+        final Map<Heading, String> sourceFiles = new IdentityHashMap<>();
+        for (final DocumentFile df : headingsByFile.keySet()) {
+            for (final Heading h : headingsByFile.get(df)) {
+                sourceFiles.put(h, df.getUri().toString());
+            }
+        }
+        final ShadowStore.Batch shadow = shadowStore.batch(account.name, sourceFiles);
+
+        eventPageSize = prefs.getInt("event_page_size", DEFAULT_EVENT_PAGE_SIZE);
+
         switch (prefs.getString("date_type", "active")) {
             case "deadline":
                 ttype = Timestamp.Type.DEADLINE;
@@ -174,14 +276,35 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
                 ttype = Timestamp.Type.ACTIVE;
         }
 
-        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        // applied as they are made, while the rest of the sync goes on
+        final OperationBatches operations = new OperationBatches(getContext().getContentResolver(), CalendarContract.AUTHORITY);
+        // files with headings in a calendar which wasn't synced, whose snapshots mustn't be kept
+        final Set<String> unsyncedFiles = new HashSet<>();
         for (final String category : categories) {
             final long calendarID = calendarIDs.get(category);
             final List<Heading> newHeadings = new ArrayList<>();
 
-            syncCalendar(eventsURI, calendarID,
-                    headingsByCategory.get(category), provider,
-                    operations, newHeadings, readOnly);
+            boolean synced;
+            try {
+                if (newCalendars.contains(calendarID)) {
+                    synced = importCalendar(eventsURI, calendarID,
+                            headingsByCategory.get(category), provider, readOnly);
+                } else {
+                    syncCalendar(eventsURI, calendarID,
+                            headingsByCategory.get(category), provider,
+                            operations, newHeadings, changedInOrg, readOnly, shadow);
+                    synced = true;
+                }
+            } catch (RemoteException e) {
+                Log.e(TAG, "Error syncing " + category + ", so the next sync will read all of it", e);
+                shadow.clear(calendarID);
+                synced = false;
+            }
+            if (!synced) {
+                for (final Heading h : headingsByCategory.get(category)) {
+                    unsyncedFiles.add(sourceFiles.get(h));
+                }
+            }
 
             // I think at this point we need to put the new headings into the files
 
@@ -191,6 +314,9 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
                     final String c = df.getName().substring(0, df.getName().length() - 4);
                     if (c.equals(category)) {
                         headingsByFile.putAll(df, newHeadings);
+                        for (final Heading h : newHeadings) {
+                            sourceFiles.put(h, df.getUri().toString());
+                        }
                         foundFile = true;
                         break;
                     }
@@ -205,6 +331,9 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
                             agendaRootFile.createFile("text/plain",
                                     category + ".org");
                     headingsByFile.putAll(categoryFile, newHeadings);
+                    for (final Heading h : newHeadings) {
+                        sourceFiles.put(h, categoryFile.getUri().toString());
+                    }
                     distinctAgendaFiles.add(categoryFile);
                 }
             }
@@ -214,9 +343,11 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
         if (!readOnly) {
             for (final DocumentFile file : distinctAgendaFiles) {
                 final List<Heading> fileHeadings = headingsByFile.get(file);
+                if (!needsWriting(fileHeadings)) continue;
                 final List<Edit> edits = new ArrayList<>();
                 final StringBuffer appends = new StringBuffer();
                 for (final Heading h : fileHeadings) {
+                    if (h.exists() && !h.isDirty()) continue;
                     try {
                         if (h.exists()) {
                             int nedits = edits.size();
@@ -238,38 +369,61 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
 
                 // now perform the edits and modify/replace the file
 
-                final StringBuffer newContents = Edit.apply(edits, fileContents.get(file));
+                final OrgFile contents = fileContents.containsKey(file) ?
+                        fileContents.get(file) : OrgFile.empty();
+                final Document document = new Document(contents.text);
                 if (appends.length() > 0) {
-                    newContents.append("\n");
-                    newContents.append(appends);
+                    edits.add(new Edit(edits.size(), document.length(), 0, "\n" + appends));
                 }
+
+                // check the edits before the file is opened, which empties it
                 try {
-                    final OutputStreamWriter w = new OutputStreamWriter(
-                            getContext().getContentResolver().openOutputStream(
-                                    file.getUri()
-                            ),
-                            StandardCharsets.UTF_8);
-                    try {
-                        w.write(newContents.toString());
-                    } finally {
-                        w.close();
+                    document.apply(edits);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "Not updating " + file.getName(), e);
+                    newSnapshots.remove(file);
+                    continue;
+                }
+
+                try {
+                    if (!contents.write(getContext().getContentResolver(), file.getUri(), document)) {
+                        Log.i(TAG, file.getName() + " is unchanged, not writing it");
+                    }
+
+                    if (appends.length() == 0) {
+                        final StringBuffer text = document.rebase(fileHeadings);
+                        if (text != null) {
+                            writtenFiles.put(file.getUri().toString(),
+                                    new WrittenFile(file, blocks, contents.withText(text),
+                                            new ArrayList<>(fileHeadings)));
+                        }
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "Error updating " + file.getName(), e);
+                    newSnapshots.remove(file);
                 }
             }
         } else {
             Log.i(TAG, "Skip any writes, because we are in read-only mode");
         }
 
-        try {
-            Log.i(TAG, "Applying " + operations.size() + " operations");
-            provider.applyBatch(operations);
+        Log.i(TAG, "Applying the rest of " + operations.size() + " operations");
+        final ContentProviderResult[] results = operations.finish();
+        if (operations.failed() > 0) {
+            Log.e(TAG, operations.failed() + " operations failed, so the next sync will read everything");
+            shadowStore.forget(account.name);
+        } else {
             Log.i(TAG, "Done");
-        } catch (RemoteException e) {
-            Log.e(TAG, "Error applying operations", e);
-        } catch (OperationApplicationException e) {
-            Log.e(TAG, "Error applying operations", e);
+            try {
+                shadow.commit(results);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error updating the shadow store, so the next sync will read everything", e);
+                shadowStore.forget(account.name);
+            }
+            for (final Map.Entry<DocumentFile, Outline.Snapshot> e : newSnapshots.entrySet()) {
+                final String uri = e.getKey().getUri().toString();
+                if (!unsyncedFiles.contains(uri)) snapshots.put(uri, e.getValue());
+            }
         }
     }
 
@@ -283,7 +437,8 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
                                              Uri calendarsURI,
                                              Set<String> categories,
                                              ContentProviderClient provider,
-                                             boolean readOnly) throws RemoteException {
+                                             boolean readOnly,
+                                             Set<Long> created) throws RemoteException {
         final Map<String, Long> result = new HashMap<>();
 
         try (final Cursor knownCalendars = provider.query(
@@ -340,8 +495,9 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
                         ? Calendars.CAL_ACCESS_READ : Calendars.CAL_ACCESS_OWNER);
                 values.put(Calendars.CALENDAR_TIME_ZONE, TimeZone.getDefault().getID());
 
-                result.put(s,
-                        ContentUris.parseId(provider.insert(calendarsURI, values)));
+                final long id = ContentUris.parseId(provider.insert(calendarsURI, values));
+                result.put(s, id);
+                created.add(id);
             }
         }
 
@@ -367,26 +523,53 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
                 .build();
     }
 
-    private static final long MAX_FILE = 1024 * 1024 * 1024;
+    private static boolean isCalendarHeading(final Heading h) {
+        if (h.hasTag("ARCHIVE")) return false; // we don't care about these esp.
+        for (Timestamp ts : h.getTimestamps()) {
+            if (ts.getType() == Timestamp.Type.ACTIVE) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-    private StringBuffer readFile(Uri file) throws IOException {
-        try (final BufferedReader isr = new BufferedReader(new InputStreamReader(
-                getContext().getContentResolver().openInputStream(file),
-                StandardCharsets.UTF_8
-        ))) {
-            final StringBuffer sb = new StringBuffer();
+    private static boolean needsWriting(final List<Heading> headings) {
+        for (final Heading h : headings) {
+            if (!h.exists() || h.isDirty()) return true;
+        }
+        return false;
+    }
 
-            String line;
+    /**
+     * Keeps only the headings from a streaming parse which will end up in a calendar,
+     * having given them their positions in the outline to sync by.
+     */
+    private static class CalendarHeadings implements OrgParser.Listener {
+        final List<Heading> headings = new ArrayList<>();
+        final OutlinePaths paths;
+        int count = 0;
+
+        CalendarHeadings(final String file) {
+            this.paths = new OutlinePaths(file);
+        }
 
-            while (null != (line = isr.readLine())) {
-                sb.append(line);
-                sb.append("\n");
-            }
+        @Override
+        public void opened(Heading heading) {
+            paths.add(heading);
+        }
 
-            return sb;
+        @Override
+        public void heading(Heading heading) {
+            count++;
+            if (isCalendarHeading(heading)) headings.add(heading);
         }
     }
 
+    private static final long MAX_FILE = 1024 * 1024 * 1024;
+    private static final int DEFAULT_EVENT_PAGE_SIZE = 500;
+    // how many events to insert at once into a new calendar
+    private static final int IMPORT_SLAB = 500;
+
     private enum EventsProjection {
         ID(CalendarContract.Events._ID),
         SYNC_ID(CalendarContract.Events._SYNC_ID),
@@ -408,12 +591,15 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
         }
 
         public static final String[] PROJECTION;
+        // the columns before TITLE, which are enough to tell whether an event needs reading in full
+        public static final String[] KEYS;
 
         static {
             PROJECTION = new String[values().length];
             for (final EventsProjection p : values()) {
                 PROJECTION[p.ordinal()] = p.field;
             }
+            KEYS = Arrays.copyOf(PROJECTION, TITLE.ordinal());
         }
     }
 
@@ -423,119 +609,261 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
             long calendarID,
             List<Heading> headings,
             ContentProviderClient provider,
-            final List<ContentProviderOperation> operations,
+            final OperationBatches operations,
             List<Heading> newHeadings,
-            boolean readOnly) {
+            Set<Heading> changedInOrg,
+            boolean readOnly,
+            final ShadowStore.Batch shadow) throws RemoteException {
         final Map<String, Heading> orgIDs = new HashMap<>();
 
         for (final Heading h : headings) {
             orgIDs.put(h.syncID(readOnly), h);
         }
 
-        try (final Cursor query = provider.query(eventsUri, EventsProjection.PROJECTION,
-                CalendarContract.Events.CALENDAR_ID + " = ?",
+        // read-only events used to be synced by checksum, so match those up the first time
+        Map<String, Heading> legacyIDs = null;
+
+        final Map<String, ShadowStore.Row> shadowRows = shadow.rows(calendarID);
+        // if the shadow store agrees with the provider about which events there are,
+        // only the events which were changed on the phone need to be read
+        boolean incremental = false;
+        try {
+            incremental = !shadowRows.isEmpty() &&
+                    countSyncedEvents(eventsUri, calendarID, provider) == shadowRows.size();
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error counting events in calendar ", e);
+        }
+        if (incremental) {
+            Log.i(TAG, "Reading only events changed on the phone, of " + shadowRows.size());
+        } else {
+            shadow.clear(calendarID);
+        }
+
+        // events to read in full, with the heading each was changed from on the phone, or null if it is new
+        final Map<Long, Heading> fromPhone = new HashMap<>();
+
+        try (final EventPages pages = new EventPages(provider, eventsUri, EventsProjection.KEYS,
+                CalendarContract.Events.CALENDAR_ID + " = ?" + (incremental ? " AND (" +
+                        CalendarContract.Events.DIRTY + " = 1 OR " +
+                        CalendarContract.Events.DELETED + " = 1 OR " +
+                        CalendarContract.Events._SYNC_ID + " IS NULL OR " +
+                        CalendarContract.Events._SYNC_ID + " = '')" : ""),
                 new String[]{String.valueOf(calendarID)},
-                null)) {
+                eventPageSize)) {
             final HashSet<String> calIDs = new HashSet<>();
-            while (query.moveToNext()) {
-                final String orgID = query.getString(EventsProjection.SYNC_ID.ordinal());
+            Cursor query;
+            while ((query = pages.next()) != null) {
+                final long eventID = query.getLong(EventsProjection.ID.ordinal());
+                String orgID = query.getString(EventsProjection.SYNC_ID.ordinal());
 
                 if (orgID == null || orgID.isEmpty()) {
-                    Log.i(TAG, "New heading for " + query.getString(EventsProjection.TITLE.ordinal()));
-                    createHeading(eventsUri, query, operations, newHeadings, readOnly);
+                    fromPhone.put(eventID, null);
                 } else {
                     calIDs.add(orgID);
-                    final Heading heading = orgIDs.get(orgID);
+                    Heading heading = orgIDs.get(orgID);
+
+                    if (heading == null && readOnly) {
+                        if (legacyIDs == null) {
+                            legacyIDs = new HashMap<>();
+                            for (final Heading h : headings) {
+                                legacyIDs.put(h.checksum(), h);
+                            }
+                        }
+                        heading = legacyIDs.remove(orgID);
+                        if (heading != null) {
+                            final String newID = heading.syncID(true);
+                            Log.i(TAG, "Moving " + heading.getHeading() + " to sync ID " + newID);
+                            migrateSyncID(eventsUri, query, newID, operations);
+                            orgID = newID;
+                            calIDs.add(newID);
+                        }
+                    }
 
                     if (heading == null) {
-                        Log.i(TAG, "Org heading removed: " + orgID + " ("
-                                + query.getString(EventsProjection.TITLE.ordinal()) + ")");
-                        createDeleteOperation(eventsUri, query, operations);
+                        Log.i(TAG, "Org heading removed: " + orgID);
+                        createDeleteOperation(eventsUri, eventID, operations);
+                        shadow.remove(calendarID, orgID);
                     } else {
-                        final String oldHash = query.getString(EventsProjection.ORG_HASH.ordinal());
-                        final String newHash = String.valueOf(heading.checksum());
                         final boolean changedOnPhone = query.getInt(EventsProjection.DIRTY.ordinal()) == 1;
-                        final boolean changedInOrg = !oldHash.equals(newHash);
+                        String oldHash = query.getString(EventsProjection.ORG_HASH.ordinal());
+                        String newHash = null;
+                        if (changedInOrg == null || changedInOrg.contains(heading)) {
+                            newHash = heading.hash();
+                            if (!Heading.isHash(oldHash) && heading.checksum().equals(oldHash)) {
+                                // stored by an older version, and still the same in org
+                                migrateHash(eventsUri, query, newHash, operations);
+                                oldHash = newHash;
+                            }
+                        }
+                        final boolean headingChanged = newHash != null && !newHash.equals(oldHash);
                         final boolean deletedOnPhone = query.getInt(EventsProjection.DELETED.ordinal()) == 1;
 
                         if (deletedOnPhone) {
                             Log.i(TAG, heading.getHeading() + " deleted on phone");
                             heading.addTag("ARCHIVE");
-                            createDeleteOperation(eventsUri, query, operations); // delete for real?
-                        } else if (changedInOrg) {
+                            createDeleteOperation(eventsUri, eventID, operations); // delete for real?
+                            shadow.remove(calendarID, orgID);
+                        } else if (headingChanged) {
                             Log.i(TAG, heading.getHeading() + " modified in org-mode (" + oldHash + " vs " + newHash);
                             if (changedOnPhone)
                                 Log.i(TAG, "Collision for changes to " + heading.getHeading() + ", org-mode wins");
-                            createUpdateOperation(query, eventsUri, heading, operations);
+                            createUpdateOperation(eventsUri, eventID, heading, operations);
+                            oldHash = newHash;
                         } else if (changedOnPhone) {
                             Log.i(TAG, heading.getHeading() + " modified on phone");
+                            fromPhone.put(eventID, heading);
+                        } else {
+                            //Log.d(TAG, heading.getHeading() + " unchanged");
+                        }
+                        if (!deletedOnPhone) {
+                            shadow.put(calendarID, orgID, eventID, heading, oldHash);
+                        }
+                    }
+                }
+            }
+            pages.close();
+
+            if (!fromPhone.isEmpty()) {
+                try (final EventPages detailPages = new EventPages(provider, eventsUri, EventsProjection.PROJECTION,
+                        CalendarContract.Events._ID + " IN (" + TextUtils.join(", ", fromPhone.keySet()) + ")",
+                        new String[0], eventPageSize)) {
+                    Cursor details;
+                    while ((details = detailPages.next()) != null) {
+                        final long eventID = details.getLong(EventsProjection.ID.ordinal());
+                        final Heading heading = fromPhone.get(eventID);
+                        if (heading == null) {
+                            Log.i(TAG, "New heading for " + details.getString(EventsProjection.TITLE.ordinal()));
+                            final Heading h = createHeading(eventsUri, details, operations, newHeadings, readOnly);
+                            shadow.put(calendarID, h.syncID(readOnly), eventID, h, h.hash());
+                        } else {
                             for (final Timestamp ts : heading.getTimestamps()) {
                                 if (ts.getType() == ttype) {
-                                    setHeadingFromQuery(query, heading, ts);
+                                    setHeadingFromQuery(details, heading, ts);
                                     break;
                                 }
                             }
-                        } else {
-                            //Log.d(TAG, heading.getHeading() + " unchanged");
                         }
                     }
                 }
             }
-            query.close();
+
+            if (incremental) {
+                // events which weren't changed on the phone are as the shadow store has them
+                for (final Map.Entry<String, ShadowStore.Row> e : shadowRows.entrySet()) {
+                    final String orgID = e.getKey();
+                    if (calIDs.contains(orgID)) continue;
+                    calIDs.add(orgID);
+                    final ShadowStore.Row row = e.getValue();
+                    final Heading heading = orgIDs.get(orgID);
+                    if (heading == null) {
+                        Log.i(TAG, "Org heading removed: " + orgID + " (from " + row.file + ")");
+                        createDeleteOperation(eventsUri, row.eventID, operations);
+                        shadow.remove(calendarID, orgID);
+                    } else if (changedInOrg == null || changedInOrg.contains(heading)) {
+                        final String newHash = heading.hash();
+                        if (!newHash.equals(row.hash)) {
+                            Log.i(TAG, heading.getHeading() + " modified in org-mode (" + row.hash + " vs " + newHash);
+                            createUpdateOperation(eventsUri, row.eventID, heading, operations);
+                            shadow.put(calendarID, orgID, row.eventID, heading, newHash);
+                        }
+                    }
+                }
+            }
+
             // new-in-org: create in calendar
             for (final String id : Sets.difference(orgIDs.keySet(), calIDs)) {
                 final Heading heading = orgIDs.get(id);
                 Log.i(TAG, "Create: " + heading.getHeading());
+                shadow.inserted(calendarID, id, operations.size(), heading, heading.hash());
                 createInsertOperation(eventsUri,calendarID,heading, operations, readOnly);
             }
-        } catch (RemoteException e) {
-            Log.e(TAG, "Error querying events from calendar ", e);
+        }
+    }
+
+    /**
+     * @return how many events in a calendar have a sync ID, which is how many the shadow store
+     * should have, or -1 if the provider won't say
+     */
+    private int countSyncedEvents(final Uri eventsUri, final long calendarID,
+                                  final ContentProviderClient provider) throws RemoteException {
+        try (final Cursor query = provider.query(eventsUri, new String[]{CalendarContract.Events._ID},
+                CalendarContract.Events.CALENDAR_ID + " = ? AND " +
+                        CalendarContract.Events._SYNC_ID + " IS NOT NULL AND " +
+                        CalendarContract.Events._SYNC_ID + " != ''",
+                new String[]{String.valueOf(calendarID)},
+                null)) {
+            return query == null ? -1 : query.getCount();
         }
     }
 
     private ContentProviderOperation.Builder copy(ContentProviderOperation.Builder builder, final Heading heading) {
+        return builder.withValues(values(heading));
+    }
+
+    private ContentValues values(final Heading heading) {
+        final ContentValues values = new ContentValues();
         for (final Timestamp ts : heading.getTimestamps()) {
             if (ts.getType() == ttype) {
-                builder = builder
-                        .withValue(CalendarContract.Events.SYNC_DATA1, String.valueOf(heading.checksum()))
-                        .withValue(CalendarContract.Events.TITLE, heading.getTitle())
-                        .withValue(CalendarContract.Events.DTSTART, ts.getStartTime())
-                        .withValue(CalendarContract.Events.EVENT_TIMEZONE, ts.isAllDay() ? "UTC" : calTimezone.getID())
-                        .withValue(CalendarContract.Events.ALL_DAY, ts.isAllDay() ? 1 : 0)
-                        .withValue(CalendarContract.Events.DIRTY, 0)
-                ;
+                values.put(CalendarContract.Events.SYNC_DATA1, heading.hash());
+                values.put(CalendarContract.Events.TITLE, heading.getTitle());
+                values.put(CalendarContract.Events.DTSTART, ts.getStartTime());
+                values.put(CalendarContract.Events.EVENT_TIMEZONE, ts.isAllDay() ? "UTC" : calTimezone.getID());
+                values.put(CalendarContract.Events.ALL_DAY, ts.isAllDay() ? 1 : 0);
+                values.put(CalendarContract.Events.DIRTY, 0);
 
                 if (ts.isRepeating()) {
-                    builder = builder
-                            .withValue(CalendarContract.Events.DURATION, ts.getDuration())
-                            .withValue(CalendarContract.Events.DTEND, null)
-                            .withValue(CalendarContract.Events.RRULE, ts.getRRULE());
+                    values.put(CalendarContract.Events.DURATION, ts.getDuration());
+                    values.putNull(CalendarContract.Events.DTEND);
+                    values.put(CalendarContract.Events.RRULE, ts.getRRULE());
                 } else {
-                    builder = builder
-                            .withValue(CalendarContract.Events.DTEND, ts.getEndTime())
-                            .withValue(CalendarContract.Events.RRULE, null)
-                            .withValue(CalendarContract.Events.DURATION, null);
+                    values.put(CalendarContract.Events.DTEND, ts.getEndTime());
+                    values.putNull(CalendarContract.Events.RRULE);
+                    values.putNull(CalendarContract.Events.DURATION);
                 }
 
                 if (heading.hasProperty("LOCATION")) {
-                    builder = builder
-                            .withValue(CalendarContract.Events.EVENT_LOCATION, heading.getProperty("LOCATION"));
+                    values.put(CalendarContract.Events.EVENT_LOCATION, heading.getProperty("LOCATION"));
                 }
 
-                return builder;
+                return values;
             }
         }
-        return builder;
+        return values;
     }
 
-    private void createUpdateOperation(Cursor query, Uri calURI, Heading heading, List<ContentProviderOperation> operations) {
-        final int localID = query.getInt(EventsProjection.ID.ordinal());
-        final ContentProviderOperation update =
+    private void createUpdateOperation(Uri calURI, long localID, Heading heading, OperationBatches operations) {
+        final ContentProviderOperation.Builder update =
                 copy(ContentProviderOperation.newUpdate(calURI), heading)
                         .withSelection(
                                 EventsProjection.ID.field + "= ?",
                                 new String[]{String.valueOf(localID)}
-                        ).build();
+                        );
+
+        operations.add(update);
+    }
+
+    private void migrateSyncID(Uri calURI, Cursor query, String syncID, OperationBatches operations) {
+        final int localID = query.getInt(EventsProjection.ID.ordinal());
+        final ContentProviderOperation.Builder update =
+                ContentProviderOperation.newUpdate(calURI)
+                        .withSelection(
+                                EventsProjection.ID.field + "= ?",
+                                new String[]{String.valueOf(localID)}
+                        )
+                        .withValue(EventsProjection.SYNC_ID.field, syncID);
+
+        operations.add(update);
+    }
+
+    private void migrateHash(Uri calURI, Cursor query, String hash, OperationBatches operations) {
+        final int localID = query.getInt(EventsProjection.ID.ordinal());
+        final ContentProviderOperation.Builder update =
+                ContentProviderOperation.newUpdate(calURI)
+                        .withSelection(
+                                EventsProjection.ID.field + "= ?",
+                                new String[]{String.valueOf(localID)}
+                        )
+                        .withValue(EventsProjection.ORG_HASH.field, hash);
 
         operations.add(update);
     }
@@ -560,20 +888,18 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private void createDeleteOperation(Uri calURI, Cursor query, List<ContentProviderOperation> operations) {
-        final int idToDelete = query.getInt(EventsProjection.ID.ordinal());
-        final ContentProviderOperation del =
+    private void createDeleteOperation(Uri calURI, long idToDelete, OperationBatches operations) {
+        final ContentProviderOperation.Builder del =
                 ContentProviderOperation.newDelete(calURI)
                         .withSelection(CalendarContract.Events._ID + " = ?",
-                                new String[]{String.valueOf(idToDelete)})
-                        .build();
+                                new String[]{String.valueOf(idToDelete)});
         operations.add(del);
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
-    private void createHeading(final Uri calURI,
+    private Heading createHeading(final Uri calURI,
                                Cursor query,
-                               List<ContentProviderOperation> operations,
+                               OperationBatches operations,
                                List<Heading> newHeadings,
                                boolean readOnly) {
 
@@ -608,31 +934,74 @@ public class CalSyncAdapter extends AbstractThreadedSyncAdapter {
         newHeadings.add(h);
 
         final int localID = query.getInt(EventsProjection.ID.ordinal());
-        final ContentProviderOperation update =
+        final ContentProviderOperation.Builder update =
                 ContentProviderOperation.newUpdate(calURI)
                         .withSelection(
                                 EventsProjection.ID.field + "= ?",
                                 new String[]{String.valueOf(localID)}
                         )
                         .withValue(EventsProjection.SYNC_ID.field, h.syncID(readOnly))
-                        .withValue(EventsProjection.ORG_HASH.field, h.checksum())
-                        .withValue(EventsProjection.DIRTY.field, 0)
-                        .build();
+                        .withValue(EventsProjection.ORG_HASH.field, h.hash())
+                        .withValue(EventsProjection.DIRTY.field, 0);
 
         operations.add(update);
+        return h;
+    }
+
+    /**
+     * Fill a calendar which has just been created, with inserts in slabs rather than an operation per event.
+     * The shadow store doesn't get the IDs of the new events, so the next sync reads the calendar in full,
+     * and inserts anything an unfinished import left out.
+     *
+     * @return false if the sync was cancelled before everything was inserted
+     */
+    private boolean importCalendar(Uri eventsUri,
+                                   long calendarID,
+                                   List<Heading> headings,
+                                   ContentProviderClient provider,
+                                   boolean readOnly) throws RemoteException {
+        // one event per sync ID, as syncCalendar would insert
+        final Map<String, Heading> orgIDs = new LinkedHashMap<>();
+        for (final Heading h : headings) {
+            orgIDs.put(h.syncID(readOnly), h);
+        }
+
+        final ContentValues[] slab = new ContentValues[Math.min(IMPORT_SLAB, orgIDs.size())];
+        int n = 0;
+        int imported = 0;
+        for (final Map.Entry<String, Heading> e : orgIDs.entrySet()) {
+            final ContentValues values = values(e.getValue());
+            values.put(CalendarContract.Events.CALENDAR_ID, calendarID);
+            values.put(CalendarContract.Events._SYNC_ID, e.getKey());
+            slab[n++] = values;
+            if (n == slab.length) {
+                imported += provider.bulkInsert(eventsUri, slab);
+                n = 0;
+                Log.i(TAG, "Imported " + imported + " of " + orgIDs.size() + " events");
+                if (Thread.currentThread().isInterrupted()) {
+                    Log.i(TAG, "Sync cancelled, stopping import");
+                    return false;
+                }
+            }
+        }
+        if (n > 0) {
+            imported += provider.bulkInsert(eventsUri, Arrays.copyOf(slab, n));
+            Log.i(TAG, "Imported " + imported + " of " + orgIDs.size() + " events");
+        }
+        return true;
     }
 
     private void createInsertOperation(Uri calURI,
                                        long calendarId,
                                        Heading heading,
-                                       List<ContentProviderOperation> out,
+                                       OperationBatches out,
                                        boolean readOnly) {
         final ContentProviderOperation.Builder create =
                 ContentProviderOperation.newInsert(calURI)
                         .withValue(CalendarContract.Events.CALENDAR_ID, calendarId)
                         .withValue(CalendarContract.Events._SYNC_ID, heading.syncID(readOnly));
 
-        out.add(copy(create, heading).build());
+        out.add(copy(create, heading));
 
         return;
     }
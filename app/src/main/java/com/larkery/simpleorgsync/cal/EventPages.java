@@ -0,0 +1,153 @@
+package com.larkery.simpleorgsync.cal;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.provider.CalendarContract;
+
+import com.larkery.simpleorgsync.lib.Log;
+
+import java.io.Closeable;
+import java.util.Arrays;
+
+/**
+ * The rows of a query on the calendar provider, fetched a page at a time in order of _ID,
+ * so that no one cursor has to hold more than fits in its window.
+ *
+ * Each page asks for the rows after the last _ID of the page before, rather than skipping
+ * an offset, so later pages cost no more than the first. The projection must start with _ID.
+ *
+ * The limit goes in the query arguments where there are any; before that it can only be
+ * tacked onto the sort order, and if the provider won't have that the rows come in one page.
+ */
+class EventPages implements Closeable {
+    private static final String TAG = "EventPages";
+
+    private final ContentProviderClient provider;
+    private final Uri uri;
+    private final String[] projection;
+    private final String selection;
+    private final String[] selectionArgs;
+    // no limit if not positive
+    private int pageSize;
+
+    private Cursor page;
+    private long lastID = Long.MIN_VALUE;
+    private boolean lastPage;
+
+    private int pages;
+    private int rows;
+    private long bytes;
+
+    EventPages(final ContentProviderClient provider, final Uri uri, final String[] projection,
+               final String selection, final String[] selectionArgs, final int pageSize) {
+        this.provider = provider;
+        this.uri = uri;
+        this.projection = projection;
+        this.selection = selection;
+        this.selectionArgs = selectionArgs;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return a cursor at the next row, which is only valid until the next call, or null if there are no more rows
+     */
+    Cursor next() throws RemoteException {
+        while (page == null || !page.moveToNext()) {
+            if (page != null) {
+                page.close();
+                page = null;
+            }
+            if (lastPage) return null;
+            fetch();
+        }
+        lastID = page.getLong(0);
+        rows++;
+        bytes += size(page);
+        return page;
+    }
+
+    private void fetch() throws RemoteException {
+        final String[] args = Arrays.copyOf(selectionArgs, selectionArgs.length + 1);
+        args[selectionArgs.length] = String.valueOf(lastID);
+        final String where = "(" + selection + ") AND " + CalendarContract.Events._ID + " > ?";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            final Bundle query = new Bundle();
+            query.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, where);
+            query.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS, args);
+            query.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, CalendarContract.Events._ID);
+            if (pageSize > 0) query.putInt(ContentResolver.QUERY_ARG_LIMIT, pageSize);
+            page = provider.query(uri, projection, query, null);
+        } else {
+            page = queryWithLimitInSortOrder(where, args);
+        }
+        pages++;
+        // if the provider ignores the limit, the first page has everything
+        lastPage = page == null || pageSize <= 0 || page.getCount() != pageSize;
+    }
+
+    private Cursor queryWithLimitInSortOrder(final String where, final String[] args) throws RemoteException {
+        if (pageSize > 0) {
+            try {
+                return provider.query(uri, projection, where, args,
+                        CalendarContract.Events._ID + " LIMIT " + pageSize);
+            } catch (IllegalArgumentException | SQLiteException e) {
+                Log.w(TAG, "Provider won't take a limit in the sort order, reading all the events at once", e);
+                pageSize = 0;
+            }
+        }
+        return provider.query(uri, projection, where, args, CalendarContract.Events._ID);
+    }
+
+    /**
+     * @return roughly how many bytes a row took to send, with strings in UTF-8 as a cursor window has them
+     */
+    private static long size(final Cursor row) {
+        long size = 0;
+        for (int i = 0; i < row.getColumnCount(); i++) {
+            switch (row.getType(i)) {
+                case Cursor.FIELD_TYPE_STRING:
+                    size += utf8Length(row.getString(i));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    size += row.getBlob(i).length;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                case Cursor.FIELD_TYPE_FLOAT:
+                    size += 8;
+                    break;
+            }
+        }
+        return size;
+    }
+
+    private static int utf8Length(final String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) length += 1;
+            else if (c < 0x800) length += 2;
+            // each half of a surrogate pair is half of a 4 byte sequence
+            else if (Character.isSurrogate(c)) length += 2;
+            else length += 3;
+        }
+        return length;
+    }
+
+    @Override
+    public void close() {
+        if (page != null) {
+            page.close();
+            page = null;
+        }
+        if (pages > 0) {
+            Log.i(TAG, "Read " + rows + " events in " + pages + " pages, about " + bytes + " bytes");
+            pages = 0;
+        }
+    }
+}
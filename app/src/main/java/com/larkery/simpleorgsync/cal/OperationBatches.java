@@ -0,0 +1,199 @@
+package com.larkery.simpleorgsync.cal;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.Parcel;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+
+import com.larkery.simpleorgsync.lib.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations on a provider, applied in chunks as they are added rather than in one batch at
+ * the end. One batch for a big sync can be too big to send, and keeps the provider's database
+ * locked for as long as it takes.
+ *
+ * Chunks are bounded by their number of operations and their size when parcelled, and are
+ * applied in order on a background thread while the next is being built. That thread has its own
+ * client for the provider, as a client isn't safe to share between threads.
+ *
+ * The provider may yield between chunks but not inside one, so each chunk is one transaction; a
+ * chunk which fails has applied nothing, and is tried again in halves so one bad operation only
+ * loses itself.
+ */
+class OperationBatches {
+    private static final String TAG = "OperationBatches";
+
+    // the calendar provider won't do more than 500 operations between yield points
+    private static final int MAX_OPERATIONS = 250;
+    // the binder buffer is 1MB, shared by every transaction in flight
+    private static final int MAX_BYTES = 256 * 1024;
+
+    private final ContentResolver resolver;
+    private final String authority;
+    private final ThreadPoolExecutor executor;
+    private final List<Future<ContentProviderResult[]>> chunks = new ArrayList<>();
+    private final List<Integer> chunkSizes = new ArrayList<>();
+
+    private ArrayList<ContentProviderOperation> chunk = new ArrayList<>();
+    private int chunkBytes;
+    private int size;
+    private int failed;
+    // only used on the executor's thread
+    private ContentProviderClient provider;
+
+    OperationBatches(final ContentResolver resolver, final String authority) {
+        this.resolver = resolver;
+        this.authority = authority;
+        this.executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        // so the thread goes away even if the sync never gets as far as finish
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return how many operations have been added, which is the index the next one's result will have
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return how many operations failed, once {@link #finish()} has returned
+     */
+    int failed() {
+        return failed;
+    }
+
+    void add(final ContentProviderOperation.Builder builder) {
+        ContentProviderOperation operation = builder.build();
+        final int bytes = sizeOf(operation);
+        if (!chunk.isEmpty() && (chunk.size() == MAX_OPERATIONS || chunkBytes + bytes > MAX_BYTES)) {
+            flush();
+        }
+        if (chunk.isEmpty()) {
+            // applyBatch only yields before an operation which isn't the first, so this is between chunks
+            operation = builder.withYieldAllowed(true).build();
+        }
+        chunk.add(operation);
+        chunkBytes += bytes;
+        size++;
+    }
+
+    private void flush() {
+        final ArrayList<ContentProviderOperation> operations = chunk;
+        chunk = new ArrayList<>();
+        chunkBytes = 0;
+        chunkSizes.add(operations.size());
+        chunks.add(executor.submit(new Callable<ContentProviderResult[]>() {
+            @Override
+            public ContentProviderResult[] call() {
+                final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+                if (provider == null) provider = resolver.acquireContentProviderClient(authority);
+                if (provider == null) {
+                    Log.e(TAG, "No provider for " + authority + ", dropping " + operations.size() + " operations");
+                    return results;
+                }
+                try {
+                    apply(operations, 0, operations.size(), results);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error applying operations", e);
+                }
+                return results;
+            }
+        }));
+    }
+
+    private void apply(final ArrayList<ContentProviderOperation> operations, final int from, final int to,
+                       final ContentProviderResult[] results) {
+        try {
+            final ContentProviderResult[] applied = provider.applyBatch(new ArrayList<>(operations.subList(from, to)));
+            System.arraycopy(applied, 0, results, from, applied.length);
+            return;
+        } catch (TransactionTooLargeException e) {
+            // nothing was sent
+            if (to - from == 1) {
+                Log.e(TAG, "Operation too big to apply: " + operations.get(from), e);
+                return;
+            }
+            Log.w(TAG, (to - from) + " operations too big to apply at once, trying again in halves");
+        } catch (RemoteException e) {
+            Log.e(TAG, "Error applying " + (to - from) + " operations", e);
+            return;
+        } catch (OperationApplicationException e) {
+            if (to - from == 1) {
+                Log.e(TAG, "Error applying " + (to - from) + " operations", e);
+                return;
+            }
+            Log.w(TAG, "Error applying " + (to - from) + " operations, trying again in halves", e);
+        }
+        final int middle = (from + to) >>> 1;
+        apply(operations, from, middle, results);
+        apply(operations, middle, to, results);
+    }
+
+    /**
+     * Apply whatever is left, and wait until everything has been applied.
+     *
+     * @return the result of every operation in the order they were added, or null for each which failed
+     */
+    ContentProviderResult[] finish() {
+        if (!chunk.isEmpty()) flush();
+        final ContentProviderResult[] results = new ContentProviderResult[size];
+        int offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            try {
+                final ContentProviderResult[] applied = chunks.get(i).get();
+                System.arraycopy(applied, 0, results, offset, applied.length);
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error applying operations", e.getCause());
+            } catch (InterruptedException e) {
+                Log.e(TAG, "Interrupted while applying operations", e);
+                Thread.currentThread().interrupt();
+                // drop the chunks not yet started, but still let the client be released below
+                executor.getQueue().clear();
+                break;
+            }
+            offset += chunkSizes.get(i);
+        }
+        chunks.clear();
+        chunkSizes.clear();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (provider != null) {
+                    provider.close();
+                    provider = null;
+                }
+            }
+        });
+        executor.shutdown();
+
+        failed = 0;
+        for (final ContentProviderResult r : results) {
+            if (r == null) failed++;
+        }
+        return results;
+    }
+
+    private static int sizeOf(final ContentProviderOperation operation) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            operation.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.larkery.simpleorgsync.cal;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.larkery.simpleorgsync.lib.Log;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * The undecoded bytes of an org file, for {@link com.larkery.simpleorgsync.cal.parse.OrgParser}
+ * to read in place.
+ *
+ * If the provider gives a file descriptor for a file of known size, the file is mapped.
+ * Otherwise it is read into a direct buffer, which goes back into a small pool on close
+ * for the next file.
+ */
+class OrgBytes implements Closeable {
+    private static final String TAG = "OrgBytes";
+
+    private static final int MIN_BUFFER = 64 * 1024;
+    // bigger buffers than this are left for the garbage collector
+    private static final int MAX_POOLED = 4 * 1024 * 1024;
+    private static final int POOL_SIZE = 2;
+    private static final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+
+    /**
+     * The contents of the file, from position 0 to the limit. Only valid until close.
+     */
+    final ByteBuffer buffer;
+    private final boolean pooled;
+
+    private OrgBytes(final ByteBuffer buffer, final boolean pooled) {
+        this.buffer = buffer;
+        this.pooled = pooled;
+    }
+
+    static OrgBytes open(final ContentResolver resolver, final Uri uri, final long maxSize) throws IOException {
+        final ParcelFileDescriptor fd;
+        try {
+            fd = resolver.openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            return read(Channels.newChannel(resolver.openInputStream(uri)), maxSize);
+        }
+        if (fd == null) {
+            return read(Channels.newChannel(resolver.openInputStream(uri)), maxSize);
+        }
+
+        try (final FileInputStream in = new FileInputStream(fd.getFileDescriptor())) {
+            final long size = fd.getStatSize();
+            if (size > maxSize) throw new IOException(uri + " is too big to sync (" + size + " bytes)");
+            final FileChannel channel = in.getChannel();
+            if (size >= 0) {
+                try {
+                    // the mapping stays valid after the channel is closed
+                    return new OrgBytes(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), false);
+                } catch (IOException e) {
+                    Log.w(TAG, uri + " can't be mapped, so it will be read", e);
+                }
+            }
+            return read(channel, maxSize);
+        } finally {
+            fd.close();
+        }
+    }
+
+    private static OrgBytes read(final ReadableByteChannel channel, final long maxSize) throws IOException {
+        ByteBuffer buffer = take(MIN_BUFFER);
+        try {
+            while (channel.read(buffer) >= 0) {
+                if (buffer.position() > maxSize) throw new IOException("File is too big to sync");
+                if (buffer.hasRemaining()) continue;
+                final ByteBuffer bigger = take((int) Math.min(maxSize + 1, 2L * buffer.capacity()));
+                buffer.flip();
+                bigger.put(buffer);
+                give(buffer);
+                buffer = bigger;
+            }
+        } catch (IOException | RuntimeException e) {
+            give(buffer);
+            throw e;
+        } finally {
+            channel.close();
+        }
+        buffer.flip();
+        return new OrgBytes(buffer, true);
+    }
+
+    private static ByteBuffer take(final int capacity) {
+        synchronized (pool) {
+            for (final ByteBuffer b : pool) {
+                if (b.capacity() >= capacity) {
+                    pool.remove(b);
+                    b.clear();
+                    return b;
+                }
+            }
+        }
+        return ByteBuffer.allocateDirect(Math.max(MIN_BUFFER, capacity));
+    }
+
+    private static void give(final ByteBuffer buffer) {
+        if (buffer.capacity() > MAX_POOLED) return;
+        synchronized (pool) {
+            if (pool.size() == POOL_SIZE) pool.removeFirst();
+            pool.addLast(buffer);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (pooled) give(buffer);
+    }
+}
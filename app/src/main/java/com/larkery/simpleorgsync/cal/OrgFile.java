@@ -0,0 +1,281 @@
+package com.larkery.simpleorgsync.cal;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.larkery.simpleorgsync.cal.parse.Document;
+import com.larkery.simpleorgsync.lib.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The text of an org file, with its lines ended by '\n' for the parser, and what is needed
+ * to write it back so that the bytes of everything which hasn't been edited stay as they were.
+ *
+ * Where the provider allows it, an edited file is patched in place from the first byte which
+ * differs, rather than being emptied and written out again.
+ */
+class OrgFile {
+    private static final String TAG = "OrgFile";
+
+    final StringBuffer text;
+    // the line ending used all through the file, or null if it uses more than one
+    private final String newline;
+    // false if the last line has no ending, although text always ends with one
+    private final boolean finalNewline;
+    // false if the file isn't all UTF-8, so it can't be written back without changing it
+    private final boolean valid;
+
+    private OrgFile(final StringBuffer text, final String newline,
+                    final boolean finalNewline, final boolean valid) {
+        this.text = text;
+        this.newline = newline;
+        this.finalNewline = finalNewline;
+        this.valid = valid;
+    }
+
+    static OrgFile empty() {
+        return new OrgFile(new StringBuffer(), "\n", true, true);
+    }
+
+    /**
+     * @return the file as it is after being written with different text
+     */
+    OrgFile withText(final StringBuffer text) {
+        return new OrgFile(text, newline == null ? "\n" : newline, finalNewline, valid);
+    }
+
+    static OrgFile read(final ContentResolver resolver, final Uri uri) throws IOException {
+        try (final InputStream in = resolver.openInputStream(uri)) {
+            return read(in);
+        }
+    }
+
+    static OrgFile read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+        }
+
+        CharSequence chars;
+        boolean valid = true;
+        try {
+            chars = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(bytes.toByteArray()));
+        } catch (CharacterCodingException e) {
+            chars = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            valid = false;
+        }
+
+        final StringBuffer text = new StringBuffer(chars.length() + 1);
+        int lf = 0;
+        int crlf = 0;
+        int cr = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            final char c = chars.charAt(i);
+            if (c == '\r') {
+                if (i + 1 < chars.length() && chars.charAt(i + 1) == '\n') {
+                    crlf++;
+                    i++;
+                } else {
+                    cr++;
+                }
+                text.append('\n');
+            } else {
+                if (c == '\n') lf++;
+                text.append(c);
+            }
+        }
+
+        final boolean finalNewline = text.length() == 0 || text.charAt(text.length() - 1) == '\n';
+        if (!finalNewline) text.append('\n');
+
+        final String newline;
+        if (crlf == 0 && cr == 0) newline = "\n";
+        else if (lf == 0 && cr == 0) newline = "\r\n";
+        else if (lf == 0 && crlf == 0) newline = "\r";
+        else newline = null;
+
+        return new OrgFile(text, newline, finalNewline, valid);
+    }
+
+    /**
+     * Write an edited version of this file back where it came from.
+     *
+     * @return false if the edits didn't change anything, so nothing was written
+     */
+    boolean write(final ContentResolver resolver, final Uri uri, final Document document) throws IOException {
+        if (document.firstDifference() < 0) return false;
+
+        if (!valid) {
+            throw new IOException("Not UTF-8, so it can't be written without changing what wasn't edited");
+        }
+
+        if (newline == null) {
+            Log.w(TAG, uri + " has mixed line endings, so it will all be written with \\n");
+            writeAll(resolver, uri, document, "\n");
+            return true;
+        }
+
+        final ParcelFileDescriptor fd;
+        try {
+            fd = resolver.openFileDescriptor(uri, "rw");
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, uri + " can't be patched, so it will all be written", e);
+            writeAll(resolver, uri, document, newline);
+            return true;
+        }
+
+        final boolean patched;
+        try (final FileOutputStream out = new FileOutputStream(fd.getFileDescriptor())) {
+            patched = patch(out.getChannel(), document);
+        } finally {
+            fd.close();
+        }
+        if (!patched) {
+            Log.i(TAG, "Writing all of " + uri);
+            writeAll(resolver, uri, document, newline);
+        }
+        return true;
+    }
+
+    /**
+     * Write the part of an edited version of this file which differs from it over the
+     * file's bytes in channel, which must have the same line endings as this.
+     *
+     * @return false if the channel can't seek or truncate, in which case nothing has been written
+     */
+    boolean patch(final FileChannel channel, final Document document) throws IOException {
+        final int end = contentEnd(document);
+        final int originalEnd = contentEnd(text);
+        int first = document.firstDifference();
+        int suffix = document.commonSuffix();
+        first = Math.min(first, Math.min(originalEnd, end));
+        // don't split up surrogate pairs
+        if (first > 0 && Character.isHighSurrogate(text.charAt(first - 1))) first--;
+        while (suffix > 0 && Character.isLowSurrogate(document.charAt(document.length() - suffix))) suffix--;
+
+        final long start = byteLength(text, 0, first, originalEnd);
+        final long oldMiddle = byteLength(text, first, text.length() - suffix, originalEnd);
+        final long newMiddle = byteLength(document, first, document.length() - suffix, end);
+        final boolean inPlace = oldMiddle == newMiddle;
+
+        try {
+            channel.position(start);
+            // when the rest of the file is written again, it is cut off first, so that a
+            // provider which can't do that is found out before anything is written
+            if (!inPlace) channel.truncate(start);
+        } catch (IOException e) {
+            Log.w(TAG, "Can't seek or truncate, so can't patch", e);
+            return false;
+        }
+
+        final Writer writer = lineEnding(new OutputStreamWriter(
+                Channels.newOutputStream(channel), StandardCharsets.UTF_8), newline);
+        if (inPlace) {
+            // the rest of the file is where it was, so only the changed part is written
+            document.writeTo(writer, first, Math.min(document.length() - suffix, end));
+            writer.flush();
+            Log.i(TAG, "Patched " + newMiddle + " bytes at " + start);
+        } else {
+            document.writeTo(writer, first, end);
+            writer.flush();
+            Log.i(TAG, "Rewrote from byte " + start);
+        }
+        return true;
+    }
+
+    private void writeAll(final ContentResolver resolver, final Uri uri,
+                          final Document document, final String newline) throws IOException {
+        final Writer w = lineEnding(new OutputStreamWriter(resolver.openOutputStream(uri),
+                StandardCharsets.UTF_8), newline);
+        try {
+            document.writeTo(w, 0, contentEnd(document));
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * @return the length of s without the line ending added to its last line, if the file had none
+     */
+    private int contentEnd(final CharSequence s) {
+        final int length = s.length();
+        if (finalNewline || length == 0 || s.charAt(length - 1) != '\n') return length;
+        return length - 1;
+    }
+
+    /**
+     * @return how many bytes s[from, min(to, end)) comes to, in UTF-8 with this file's line endings
+     */
+    private long byteLength(final CharSequence s, final int from, int to, final int end) {
+        to = Math.min(to, end);
+        long bytes = 0;
+        for (int i = from; i < to; i++) {
+            final char c = s.charAt(i);
+            if (c == '\n') {
+                bytes += newline.length();
+            } else if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < to && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // written as '?'
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private static Writer lineEnding(final Writer out, final String newline) {
+        if (newline.equals("\n")) return out;
+        return new FilterWriter(out) {
+            @Override
+            public void write(int c) throws IOException {
+                if (c == '\n') out.write(newline);
+                else out.write(c);
+            }
+
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                int from = off;
+                for (int i = off; i < off + len; i++) {
+                    if (cbuf[i] == '\n') {
+                        out.write(cbuf, from, i - from);
+                        out.write(newline);
+                        from = i + 1;
+                    }
+                }
+                out.write(cbuf, from, off + len - from);
+            }
+
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                write(str.toCharArray(), off, len);
+            }
+        };
+    }
+}
@@ -0,0 +1,254 @@
+package com.larkery.simpleorgsync.cal;
+
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+import com.larkery.simpleorgsync.cal.parse.Heading;
+import com.larkery.simpleorgsync.lib.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What each synced event looked like when the last sync was applied, so that a sync can
+ * diff org, the calendar provider and this, and only ask the provider about events which
+ * were changed on the phone.
+ *
+ * Rows are keyed by calendar and sync ID. A calendar with no rows hasn't been synced
+ * since the store was created, and has to be read from the provider in full. Every account
+ * shares the store, so each row says which account's calendar it is in.
+ */
+class ShadowStore extends SQLiteOpenHelper {
+    private static final String TAG = "ShadowStore";
+    private static final String NAME = "shadow.db";
+    private static final int VERSION = 2;
+
+    private static final String EVENTS = "events";
+    private static final String ACCOUNT = "account";
+    private static final String CALENDAR_ID = "calendar_id";
+    private static final String SYNC_ID = "sync_id";
+    private static final String EVENT_ID = "event_id";
+    private static final String HASH = "hash";
+    private static final String FILE = "file";
+
+    private static ShadowStore instance;
+
+    static synchronized ShadowStore get(final Context context) {
+        if (instance == null) instance = new ShadowStore(context.getApplicationContext());
+        return instance;
+    }
+
+    private ShadowStore(final Context context) {
+        super(context, NAME, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(final SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + EVENTS + " (" +
+                ACCOUNT + " TEXT NOT NULL, " +
+                CALENDAR_ID + " INTEGER NOT NULL, " +
+                SYNC_ID + " TEXT NOT NULL, " +
+                EVENT_ID + " INTEGER NOT NULL, " +
+                HASH + " TEXT, " +
+                FILE + " TEXT, " +
+                "PRIMARY KEY (" + CALENDAR_ID + ", " + SYNC_ID + "))");
+    }
+
+    @Override
+    public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
+        // it is only a cache of what the provider holds, so it can be built again
+        db.execSQL("DROP TABLE IF EXISTS " + EVENTS);
+        onCreate(db);
+    }
+
+    /**
+     * An event as it was left by the last sync.
+     */
+    static class Row {
+        final long eventID;
+        final String hash;
+        final String file;
+
+        Row(final long eventID, final String hash, final String file) {
+            this.eventID = eventID;
+            this.hash = hash;
+            this.file = file;
+        }
+    }
+
+    /**
+     * @return the rows for a calendar, by sync ID, or none if they can't be read
+     */
+    Map<String, Row> rows(final long calendarID) {
+        final Map<String, Row> result = new HashMap<>();
+        try (final Cursor c = getReadableDatabase().query(EVENTS,
+                new String[]{SYNC_ID, EVENT_ID, HASH, FILE},
+                CALENDAR_ID + " = ?", new String[]{String.valueOf(calendarID)},
+                null, null, null)) {
+            while (c.moveToNext()) {
+                result.put(c.getString(0), new Row(c.getLong(1), c.getString(2), c.getString(3)));
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to read the shadow store", e);
+            result.clear();
+        }
+        return result;
+    }
+
+    /**
+     * Forget the rows of any of an account's calendars which aren't in the given ones
+     */
+    void retainCalendars(final String account, final Collection<Long> calendarIDs) {
+        try {
+            getWritableDatabase().delete(EVENTS,
+                    ACCOUNT + " = ? AND " + CALENDAR_ID + " NOT IN (" + TextUtils.join(", ", calendarIDs) + ")",
+                    new String[]{account});
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to update the shadow store", e);
+        }
+    }
+
+    /**
+     * @param account the account whose calendars the batch is for
+     * @param files the uri of the file each heading is in, which may be added to until the batch is committed
+     */
+    Batch batch(final String account, final Map<Heading, String> files) {
+        return new Batch(account, files);
+    }
+
+    /**
+     * Changes to the store which follow from a batch of provider operations, and
+     * which are only made once those operations have been applied.
+     */
+    class Batch {
+        private final String account;
+        private final Map<Heading, String> files;
+        private final List<Change> changes = new ArrayList<>();
+
+        private Batch(final String account, final Map<Heading, String> files) {
+            this.account = account;
+            this.files = files;
+        }
+
+        /**
+         * @return the rows for a calendar as the last sync left them, by sync ID
+         */
+        Map<String, Row> rows(final long calendarID) {
+            return ShadowStore.this.rows(calendarID);
+        }
+
+        /**
+         * Forget everything about a calendar, before putting back what is in it now
+         */
+        void clear(final long calendarID) {
+            changes.add(new Change(true, calendarID, null, -1, -1, null, null));
+        }
+
+        void put(final long calendarID, final String syncID, final long eventID,
+                 final Heading heading, final String hash) {
+            changes.add(new Change(false, calendarID, syncID, eventID, -1, heading, hash));
+        }
+
+        /**
+         * Put an event which is inserted by the given operation, which will give its ID
+         */
+        void inserted(final long calendarID, final String syncID, final int operation,
+                      final Heading heading, final String hash) {
+            changes.add(new Change(false, calendarID, syncID, -1, operation, heading, hash));
+        }
+
+        void remove(final long calendarID, final String syncID) {
+            changes.add(new Change(true, calendarID, syncID, -1, -1, null, null));
+        }
+
+        /**
+         * Make the changes, given the results of the provider operations they follow from
+         */
+        void commit(final ContentProviderResult[] results) {
+            final SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (final Change change : changes) {
+                    change.apply(db, results, account, files);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Forget everything about an account, so that its next sync reads all of every calendar
+     */
+    void forget(final String account) {
+        try {
+            getWritableDatabase().delete(EVENTS, ACCOUNT + " = ?", new String[]{account});
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to clear the shadow store", e);
+        }
+    }
+
+    private static class Change {
+        final boolean remove;
+        final long calendarID;
+        final String syncID;
+        final long eventID;
+        final int operation;
+        // where the heading is is only looked at once any edits have been written
+        final Heading heading;
+        final String hash;
+
+        Change(final boolean remove, final long calendarID, final String syncID, final long eventID,
+               final int operation, final Heading heading, final String hash) {
+            this.remove = remove;
+            this.calendarID = calendarID;
+            this.syncID = syncID;
+            this.eventID = eventID;
+            this.operation = operation;
+            this.heading = heading;
+            this.hash = hash;
+        }
+
+        void apply(final SQLiteDatabase db, final ContentProviderResult[] results,
+                   final String account, final Map<Heading, String> files) {
+            if (remove) {
+                if (syncID == null) {
+                    db.delete(EVENTS, CALENDAR_ID + " = ?", new String[]{String.valueOf(calendarID)});
+                } else {
+                    db.delete(EVENTS, CALENDAR_ID + " = ? AND " + SYNC_ID + " = ?",
+                            new String[]{String.valueOf(calendarID), syncID});
+                }
+                return;
+            }
+
+            final long id;
+            if (operation < 0) {
+                id = eventID;
+            } else if (results != null && operation < results.length && results[operation].uri != null) {
+                id = ContentUris.parseId(results[operation].uri);
+            } else {
+                return;
+            }
+
+            final ContentValues values = new ContentValues();
+            values.put(ACCOUNT, account);
+            values.put(CALENDAR_ID, calendarID);
+            values.put(SYNC_ID, syncID);
+            values.put(EVENT_ID, id);
+            values.put(HASH, hash);
+            values.put(FILE, files.get(heading));
+            db.insertWithOnConflict(EVENTS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
+    }
+}
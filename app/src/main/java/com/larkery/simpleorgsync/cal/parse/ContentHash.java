@@ -0,0 +1,70 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+/**
+ * A 64-bit FNV-1a hash, fed one value at a time, for telling whether the
+ * content of a heading has changed since it was last synced.
+ *
+ * Strings are fed with their lengths, so that moving text from one field
+ * to the next changes the hash.
+ */
+final class ContentHash {
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private long hash = OFFSET_BASIS;
+
+    ContentHash add(final long value) {
+        for (int i = 0; i < 64; i += 16) {
+            hash = (hash ^ ((value >>> i) & 0xFFFF)) * PRIME;
+        }
+        return this;
+    }
+
+    ContentHash add(final CharSequence s, final int from, final int to) {
+        add(to - from);
+        for (int i = from; i < to; i++) {
+            hash = (hash ^ s.charAt(i)) * PRIME;
+        }
+        return this;
+    }
+
+    ContentHash add(final CharSequence s) {
+        if (s == null) return add(-1);
+        return add(s, 0, s.length());
+    }
+
+    /**
+     * @return the hash of everything added so far
+     */
+    long value() {
+        // FNV leaves the last few characters in the low bits only, so mix them through
+        long h = hash;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * @return value as 16 lower case hex digits
+     */
+    static String hex(long value) {
+        final char[] out = new char[16];
+        for (int i = 15; i >= 0; i--, value >>>= 4) {
+            out[i] = HEX[(int) (value & 0xF)];
+        }
+        return new String(out);
+    }
+
+    /**
+     * @return true if s looks like the output of {@link #hex(long)}
+     */
+    static boolean isHex(final String s) {
+        if (s == null || s.length() != 16) return false;
+        for (int i = 0; i < 16; i++) {
+            final char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+}
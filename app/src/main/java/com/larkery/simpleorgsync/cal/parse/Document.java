@@ -0,0 +1,253 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The text of a file with edits made to it, kept as the file as it was read and
+ * the edits, rather than as a new copy of the text.
+ *
+ * Edits are always given against the text as it was read, which is where the
+ * spans of parsed headings point, so a heading can be edited again in a later round;
+ * {@link #translate(int)} says where a position in the original has ended up.
+ */
+public class Document implements CharSequence {
+    private final CharSequence original;
+    // sorted, and not overlapping
+    private List<Edit> edits = new ArrayList<>();
+    // for each edit, where its inserted text starts in the edited document
+    private int[] starts = new int[0];
+    private int length;
+
+    public Document(final CharSequence original) {
+        this.original = original;
+        this.length = original.length();
+    }
+
+    public CharSequence getOriginal() {
+        return original;
+    }
+
+    public boolean isEdited() {
+        return !edits.isEmpty();
+    }
+
+    /**
+     * Make a round of edits. An edit here replaces any from earlier rounds which change
+     * the same text, and insertions here replace earlier insertions at the same position.
+     * Earlier edits which nothing here replaces are kept, so putting text back as it was
+     * in the original takes an edit which says so.
+     *
+     * @throws IllegalArgumentException if the edits overlap each other, or insert into
+     * text which an earlier round replaced; the document is unchanged if so
+     */
+    public void apply(final List<Edit> round) {
+        if (round.isEmpty()) return;
+        Edit.sort(round);
+
+        final int[] ends = new int[round.size()];
+        for (int i = 0; i < ends.length; i++) {
+            ends[i] = round.get(i).getEnd();
+        }
+
+        final List<Edit> merged = new ArrayList<>(edits.size() + round.size());
+        for (final Edit e : edits) {
+            if (!supersededBy(e, round, ends)) merged.add(e);
+        }
+        merged.addAll(round);
+        Edit.sort(merged);
+
+        final int[] newStarts = new int[merged.size()];
+        int shift = 0;
+        for (int i = 0; i < newStarts.length; i++) {
+            final Edit e = merged.get(i);
+            newStarts[i] = e.getOffset() + shift;
+            shift += e.getInsert().length() - e.getLength();
+        }
+
+        edits = merged;
+        starts = newStarts;
+        length = original.length() + shift;
+    }
+
+    private static boolean supersededBy(final Edit old, final List<Edit> round, final int[] ends) {
+        // the first edit in the round which ends at or after the old one starts
+        int lo = 0;
+        int hi = ends.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (ends[mid] < old.getOffset()) lo = mid + 1;
+            else hi = mid;
+        }
+
+        for (int i = lo; i < ends.length && round.get(i).getOffset() <= old.getEnd(); i++) {
+            final Edit e = round.get(i);
+            if (e.getLength() == 0 && old.getLength() == 0) {
+                if (e.getOffset() == old.getOffset()) return true;
+            } else if (e.getLength() == 0) {
+                if (old.getOffset() < e.getOffset() && e.getOffset() < old.getEnd()) {
+                    throw new IllegalArgumentException("Insertion into replaced text at " + e.getOffset() + ": " + e);
+                }
+            } else if (old.getLength() == 0) {
+                if (e.getOffset() < old.getOffset() && old.getOffset() < e.getEnd()) return true;
+            } else if (e.getOffset() < old.getEnd() && old.getOffset() < e.getEnd()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the position in this document of a position in the original; a position in
+     * text which has been replaced goes to the start of its replacement, and a position
+     * where text was inserted goes to the end of the insertion
+     */
+    public int translate(final int offset) {
+        final int i = lastEditAtOrBefore(offset);
+        if (i < 0) return offset;
+        final Edit e = edits.get(i);
+        if (offset < e.getEnd()) return starts[i];
+        return starts[i] + e.getInsert().length() + (offset - e.getEnd());
+    }
+
+    private int lastEditAtOrBefore(final int offset) {
+        int lo = 0;
+        int hi = edits.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (edits.get(mid).getOffset() <= offset) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Move headings parsed from the original over to the edited text, so that they are
+     * as if they had been parsed from it, and need not be parsed again.
+     *
+     * @return the edited text which the headings now point into, or null if the edits
+     * changed the layout of any heading so that it has to be parsed again
+     */
+    public StringBuffer rebase(final List<Heading> headings) {
+        final StringWriter edited = new StringWriter(length);
+        try {
+            writeTo(edited);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        for (final Heading heading : headings) {
+            if (!heading.rebase(this, edited.getBuffer())) return null;
+        }
+        return edited.getBuffer();
+    }
+
+    /**
+     * Write out the edited document, copying unchanged text straight from the original.
+     */
+    public void writeTo(final Writer out) throws IOException {
+        Edit.apply(edits, original, out);
+    }
+
+    /**
+     * Write out part of the edited document, from and to being positions in it.
+     */
+    public void writeTo(final Writer out, final int from, final int to) throws IOException {
+        final char[] chunk = new char[8192];
+        int pos = 0;
+        int offset = 0;
+        for (final Edit e : edits) {
+            if (pos >= to) return;
+            pos = piece(out, original, offset, e.getOffset(), pos, from, to, chunk);
+            pos = piece(out, e.getInsert(), 0, e.getInsert().length(), pos, from, to, chunk);
+            offset = e.getEnd();
+        }
+        piece(out, original, offset, original.length(), pos, from, to, chunk);
+    }
+
+    /**
+     * Write the part of source[start, end), which is at pos in the edited text, that is within [from, to).
+     *
+     * @return the position after the piece
+     */
+    private static int piece(final Writer out, final CharSequence source, final int start, final int end,
+                             final int pos, final int from, final int to, final char[] chunk) throws IOException {
+        final int next = pos + end - start;
+        final int lo = Math.max(pos, from);
+        final int hi = Math.min(next, to);
+        if (lo < hi) Edit.copy(source, start + lo - pos, start + hi - pos, chunk, out);
+        return next;
+    }
+
+    /**
+     * @return the first position at which the edited text differs from the original,
+     * or -1 if they are the same
+     */
+    public int firstDifference() {
+        if (edits.isEmpty()) return -1;
+        final int shorter = Math.min(length, original.length());
+        for (int i = edits.get(0).getOffset(); i < shorter; i++) {
+            if (charAt(i) != original.charAt(i)) return i;
+        }
+        return length == original.length() ? -1 : shorter;
+    }
+
+    /**
+     * @return how many characters at the end of the edited text are the same as at the
+     * end of the original, not counting any before the first difference
+     */
+    public int commonSuffix() {
+        if (edits.isEmpty()) return length;
+        int lastEnd = 0;
+        for (final Edit e : edits) {
+            lastEnd = Math.max(lastEnd, e.getEnd());
+        }
+        final int first = Math.max(0, firstDifference());
+        int suffix = Math.min(original.length() - lastEnd, Math.min(length, original.length()) - first);
+        while (original.length() - suffix > first && length - suffix > first &&
+                charAt(length - suffix - 1) == original.charAt(original.length() - suffix - 1)) {
+            suffix++;
+        }
+        return suffix;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException(String.valueOf(index));
+        // the last edit whose text starts at or before index
+        int lo = 0;
+        int hi = starts.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (starts[mid] <= index) lo = mid + 1;
+            else hi = mid;
+        }
+        final int i = lo - 1;
+        if (i < 0) return original.charAt(index);
+        final Edit e = edits.get(i);
+        final int intoInsert = index - starts[i];
+        if (intoInsert < e.getInsert().length()) return e.getInsert().charAt(intoInsert);
+        return original.charAt(e.getEnd() + intoInsert - e.getInsert().length());
+    }
+
+    @Override
+    public CharSequence subSequence(final int start, final int end) {
+        final StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            sb.append(charAt(i));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length).toString();
+    }
+}
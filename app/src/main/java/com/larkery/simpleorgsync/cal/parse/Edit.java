@@ -1,5 +1,7 @@
 package com.larkery.simpleorgsync.cal.parse;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Collections;
 import java.util.List;
 
@@ -20,15 +22,87 @@ public class Edit implements Comparable<Edit> {
     public int compareTo(Edit edit) {
         int byOffset = Integer.compare(offset, edit.offset);
         if (byOffset != 0) return byOffset;
+        // an insertion goes before a replacement at the same place, or they would overlap
+        int byInsertion = Boolean.compare(length != 0, edit.length != 0);
+        if (byInsertion != 0) return byInsertion;
         return Integer.compare(order, edit.order);
     }
 
+    int getOffset() {
+        return offset;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    int getEnd() {
+        return offset + length;
+    }
+
+    String getInsert() {
+        return insert;
+    }
+
+    /**
+     * Put edits into the order they apply in.
+     *
+     * @throws IllegalArgumentException if any two of them change the same text
+     */
+    public static void sort(final List<Edit> edits) {
+        Collections.sort(edits);
+        int end = 0;
+        for (final Edit e : edits) {
+            if (e.offset < end) {
+                throw new IllegalArgumentException("Overlapping edits at " + e.offset + ": " + e);
+            }
+            end = e.offset + e.length;
+        }
+    }
+
+    /**
+     * Write the result of applying edits to a source, copying the text between
+     * edits straight from it rather than building the result in memory.
+     *
+     * @throws IllegalArgumentException if any two edits overlap, before anything is written
+     */
+    public static void apply(final List<Edit> edits, final CharSequence source, final Writer out) throws IOException {
+        sort(edits);
+
+        final char[] chunk = new char[8192];
+        int offset = 0;
+
+        for (final Edit e : edits) {
+            copy(source, offset, e.offset, chunk, out);
+            out.write(e.insert);
+            offset = e.offset + e.length;
+        }
+
+        copy(source, offset, source.length(), chunk, out);
+    }
+
+    static void copy(final CharSequence source, int from, final int to,
+                             final char[] chunk, final Writer out) throws IOException {
+        while (from < to) {
+            final int n = Math.min(chunk.length, to - from);
+            if (source instanceof StringBuffer) {
+                ((StringBuffer) source).getChars(from, from + n, chunk, 0);
+            } else if (source instanceof String) {
+                ((String) source).getChars(from, from + n, chunk, 0);
+            } else {
+                for (int i = 0; i < n; i++) chunk[i] = source.charAt(from + i);
+            }
+            out.write(chunk, 0, n);
+            from += n;
+        }
+    }
+
     public static StringBuffer apply(final List<Edit> edits, final StringBuffer buffer) {
         if (edits.isEmpty()) return buffer;
 
         final StringBuffer out = new StringBuffer(buffer.length());
 
-        Collections.sort(edits);
+        sort(edits);
 
         int offset = 0;
 
@@ -45,8 +119,8 @@ public class Edit implements Comparable<Edit> {
     }
 
     public static void replace(Tokenizer.Item<?> item, int group, String replace, final List<Edit> edits) {
-        if (!replace.equals(item.groups[group])) {
-            edits.add(new Edit(edits.size(), item.starts[group], item.ends[group] - item.starts[group], replace));
+        if (!item.groupEquals(group, replace)) {
+            edits.add(new Edit(edits.size(), item.start(group), item.length(group), replace));
         }
     }
 
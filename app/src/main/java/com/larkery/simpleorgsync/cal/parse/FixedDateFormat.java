@@ -0,0 +1,201 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import java.time.Instant;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Converts between epoch millis and the fixed layouts used in org timestamps
+ * (yyyy-MM-dd HH:mm) and in the UNTIL part of an RRULE (yyyyMMdd'T'HHmmssX),
+ * without the cost of a {@link java.text.SimpleDateFormat}.
+ *
+ * Dates are worked out arithmetically on the proleptic Gregorian calendar, and fields
+ * which are out of range roll over into the next field, as they would when parsing leniently.
+ *
+ * Zone offsets come from the period between the transitions either side of the last time
+ * looked up in each zone, so most conversions don't allocate. Everything here is thread safe.
+ */
+final class FixedDateFormat {
+    static final long ONE_MINUTE = 60 * 1000L;
+    static final long ONE_HOUR = 60 * ONE_MINUTE;
+    static final long ONE_DAY = 24 * ONE_HOUR;
+
+    /**
+     * Returned by {@link #parseICal(CharSequence)} for text it can't read.
+     */
+    static final long INVALID = Long.MIN_VALUE;
+
+    private FixedDateFormat() {}
+
+    /**
+     * A period over which a zone's offset from UTC doesn't change.
+     */
+    private static class Window {
+        final long from;
+        final long to;
+        final int offset;
+
+        Window(final long from, final long to, final int offset) {
+            this.from = from;
+            this.to = to;
+            this.offset = offset;
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * @return the offset of zone from UTC at the given instant, in millis
+     */
+    static int offset(final TimeZone zone, final long utc) {
+        final Window w = windows.get(zone.getID());
+        if (w != null && w.from <= utc && utc < w.to) return w.offset;
+
+        final ZoneRules rules = zone.toZoneId().getRules();
+        // transitions are on whole seconds, so the one before utc + 1ms is the last one at or before utc
+        final ZoneOffsetTransition previous = rules.previousTransition(Instant.ofEpochMilli(utc + 1));
+        final ZoneOffsetTransition next = rules.nextTransition(Instant.ofEpochMilli(utc));
+        final Window window = new Window(
+                previous == null ? Long.MIN_VALUE : previous.toEpochSecond() * 1000,
+                next == null ? Long.MAX_VALUE : next.toEpochSecond() * 1000,
+                rules.getOffset(Instant.ofEpochMilli(utc)).getTotalSeconds() * 1000);
+        windows.put(zone.getID(), window);
+        return window.offset;
+    }
+
+    /**
+     * @return the instant at which the wall clock in zone shows the given time.
+     *
+     * As with {@link java.util.GregorianCalendar}, a time which happens twice when the clocks
+     * go back is taken in standard time, and a time which is skipped when they go forward is
+     * taken in the offset from before the change.
+     */
+    static long toMillis(final TimeZone zone, final int year, final int month, final int day,
+                         final int hour, final int minute) {
+        final long local = days(year, month, day) * ONE_DAY + hour * ONE_HOUR + minute * ONE_MINUTE;
+        final int guess = offset(zone, local - zone.getRawOffset());
+        final int actual = offset(zone, local - guess);
+        return local - actual;
+    }
+
+    /**
+     * @return the day number (days since 1970-01-01) of the wall clock date in zone at the given instant
+     */
+    static long localDay(final long utc, final TimeZone zone) {
+        return Math.floorDiv(utc + offset(zone, utc), ONE_DAY);
+    }
+
+    /**
+     * Append the wall clock date in zone at the given instant, as yyyy-MM-dd
+     */
+    static StringBuilder appendDate(final StringBuilder out, final long utc, final TimeZone zone) {
+        return appendDay(out, localDay(utc, zone), '-');
+    }
+
+    /**
+     * Append the wall clock time in zone at the given instant, as HH:mm
+     */
+    static StringBuilder appendTime(final StringBuilder out, final long utc, final TimeZone zone) {
+        final long minutes = Math.floorMod(utc + offset(zone, utc), ONE_DAY) / ONE_MINUTE;
+        pad(out, minutes / 60, 2).append(':');
+        return pad(out, minutes % 60, 2);
+    }
+
+    /**
+     * Read a UTC date-time of the form yyyyMMdd'T'HHmmss followed by Z or a signed hour offset.
+     * Anything after that is ignored.
+     *
+     * @return the instant, or {@link #INVALID}
+     */
+    static long parseICal(final CharSequence s) {
+        if (s.length() < 16 || !digits(s, 0, 8) || s.charAt(8) != 'T' || !digits(s, 9, 6)) {
+            return INVALID;
+        }
+
+        final long local = days(number(s, 0, 4), number(s, 4, 2), number(s, 6, 2)) * ONE_DAY +
+                number(s, 9, 2) * ONE_HOUR +
+                number(s, 11, 2) * ONE_MINUTE +
+                number(s, 13, 2) * 1000L;
+
+        final char sign = s.charAt(15);
+        if (sign == 'Z') {
+            return local;
+        } else if ((sign == '+' || sign == '-') && digits(s, 16, 2)) {
+            final long offset = number(s, 16, 2) * ONE_HOUR;
+            return sign == '+' ? local - offset : local + offset;
+        } else {
+            return INVALID;
+        }
+    }
+
+    /**
+     * Append an instant in UTC as yyyyMMdd'T'HHmmss'Z'
+     */
+    static StringBuilder appendICal(final StringBuilder out, final long utc) {
+        appendDay(out, Math.floorDiv(utc, ONE_DAY), (char) 0).append('T');
+        final long seconds = Math.floorMod(utc, ONE_DAY) / 1000;
+        pad(out, seconds / 3600, 2);
+        pad(out, (seconds / 60) % 60, 2);
+        pad(out, seconds % 60, 2);
+        return out.append('Z');
+    }
+
+    // civil calendar arithmetic, after http://howardhinnant.github.io/date_algorithms.html
+
+    /**
+     * @return days since 1970-01-01 of the given date, where month and day may be out of range
+     */
+    static long days(long year, final long month, final long day) {
+        year += Math.floorDiv(month - 1, 12);
+        final long m = Math.floorMod(month - 1, 12) + 1;
+        final long y = m <= 2 ? year - 1 : year;
+        final long era = Math.floorDiv(y, 400);
+        final long yoe = y - era * 400;
+        final long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5;
+        final long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468 + (day - 1);
+    }
+
+    private static StringBuilder appendDay(final StringBuilder out, long days, final char separator) {
+        days += 719468;
+        final long era = Math.floorDiv(days, 146097);
+        final long doe = days - era * 146097;
+        final long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        final long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        final long mp = (5 * doy + 2) / 153;
+        final long day = doy - (153 * mp + 2) / 5 + 1;
+        final long month = mp < 10 ? mp + 3 : mp - 9;
+        final long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+
+        pad(out, year, 4);
+        if (separator != 0) out.append(separator);
+        pad(out, month, 2);
+        if (separator != 0) out.append(separator);
+        return pad(out, day, 2);
+    }
+
+    private static StringBuilder pad(final StringBuilder out, final long value, int width) {
+        for (long v = value; v >= 10 && width > 1; v /= 10) width--;
+        for (; width > 1; width--) out.append('0');
+        return out.append(value);
+    }
+
+    private static boolean digits(final CharSequence s, int p, int n) {
+        if (p + n > s.length()) return false;
+        for (; n > 0; n--, p++) {
+            final char c = s.charAt(p);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    private static int number(final CharSequence s, int p, int n) {
+        int v = 0;
+        for (; n > 0; n--, p++) {
+            v = 10 * v + (s.charAt(p) - '0');
+        }
+        return v;
+    }
+}
@@ -3,11 +3,8 @@ package com.larkery.simpleorgsync.cal.parse;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
@@ -17,88 +14,177 @@ public class Heading {
 
     private String category;
     private String heading;
-    private Set<String> tags = new LinkedHashSet<>();
-    private Set<String> inheritedTags = new HashSet<>();
-    private Map<String, Property> properties = new LinkedHashMap<>();
+
+    private final TagDictionary dictionary;
+    // own tags, in the order they are written
+    private int[] tagOrder = new int[0];
+    private TagSet tags = TagSet.EMPTY;
+    // the parent's own tags, and the FILETAGS, which are shared rather than copied
+    private TagSet inheritedTags = TagSet.EMPTY;
+    private TagSet fileTags = TagSet.EMPTY;
+    // in the order they were added, and only allocated for the first one
+    private Property[] properties;
+    private int propertyCount = 0;
     private List<Timestamp> timestamps = new ArrayList<>();
 
     private int depth = 1;
     private int endOfLastProperty = 0;
 
-    public Heading(final Tokenizer.Item<OrgParser.Token> item, final Set<String> inheritedTags, String category) {
+    // set by OutlinePaths, to stand in for the ID in read-only mode
+    private String positionalID;
+
+    // set when the heading, or one of its properties or timestamps, is changed after parsing
+    private boolean dirty = false;
+
+    // memo for contentHash(), cleared by changed()
+    private boolean hashed = false;
+    private long contentHash;
+
+    // set when the headings of a file are put into an Outline
+    private Heading parent;
+    private List<Heading> children = Collections.emptyList();
+    // memo for subtreeHash(), cleared by changed() here or in any descendant
+    private boolean subtreeHashed = false;
+    private long subtreeHash;
+
+    Heading(final Tokenizer.Item<OrgParser.Token> item, final TagDictionary dictionary,
+            final TagSet inheritedTags, String category) {
         this.item = item;
+        this.dictionary = dictionary;
 
-        this.endOfLastProperty = item.ends[0] + 1; //maybe
+        this.endOfLastProperty = item.end(0) + 1; //maybe
 
-        this.heading = item.groups[2];
-        this.depth = item.groups[1].length();
-        if (item.groups[3] != null) {
-            this.tags.addAll(Arrays.asList(item.groups[3].split(":")));
-            this.tags.remove("");
+        this.heading = item.group(2);
+        this.depth = item.length(1);
+        if (item.has(3)) {
+            for (final String tag : item.group(3).split(":")) {
+                if (!tag.isEmpty()) addOwnTag(tag);
+            }
         }
 
         if (inheritedTags != null)
-            this.inheritedTags.addAll(inheritedTags);
+            this.inheritedTags = inheritedTags;
 
         this.category = category;
     }
 
     public Heading(final String heading, final Set<String> tags, String category) {
         this.heading = heading;
-        this.tags.addAll(tags);
+        this.dictionary = new TagDictionary();
+        for (final String tag : tags) {
+            addOwnTag(tag);
+        }
         this.setProperty("ID", UUID.randomUUID().toString());
         this.category = category;
     }
 
     public String getCategory() { return category; }
 
+    void setCategory(final String category) {
+        this.category = category;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
     public String getHeading() {
         return heading;
     }
 
     public void setHeading(String heading) {
         this.heading = heading;
+        modified();
     }
 
     public boolean hasTag(String s) {
-        return tags.contains(s) || inheritedTags.contains(s);
+        final int id = dictionary.find(s);
+        return id >= 0 && (tags.contains(id) || inheritedTags.contains(id) || fileTags.contains(id));
     }
 
     public void addTag(final String tag) {
-        tags.add(tag);
+        if (addOwnTag(tag)) modified();
+    }
+
+    private boolean addOwnTag(final String tag) {
+        final int id = dictionary.intern(tag);
+        if (tags.contains(id)) return false;
+        tags = tags.with(id);
+        tagOrder = Arrays.copyOf(tagOrder, tagOrder.length + 1);
+        tagOrder[tagOrder.length - 1] = id;
+        changed();
+        return true;
     }
 
     public void removeTag(final String tag) {
-        tags.remove(tag);
+        final int id = dictionary.find(tag);
+        if (id < 0 || !tags.contains(id)) return;
+        tags = tags.without(id);
+        final int[] order = new int[tagOrder.length - 1];
+        int i = 0;
+        for (final int t : tagOrder) {
+            if (t != id) order[i++] = t;
+        }
+        tagOrder = order;
+        modified();
+    }
+
+    private int indexOfProperty(final String key) {
+        for (int i = 0; i < propertyCount; i++) {
+            if (properties[i].hasKey(key)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Add a property, or replace the one with the same key where it is.
+     */
+    private void putProperty(final String key, final Property property) {
+        property.setOwner(this);
+        changed();
+        final int i = indexOfProperty(key);
+        if (i >= 0) {
+            properties[i] = property;
+        } else {
+            if (properties == null) {
+                properties = new Property[2];
+            } else if (propertyCount == properties.length) {
+                properties = Arrays.copyOf(properties, 2 * propertyCount);
+            }
+            properties[propertyCount++] = property;
+        }
     }
 
     public boolean hasProperty(final String key) {
-        return properties.containsKey(key);
+        return indexOfProperty(key) >= 0;
     }
 
     public void setProperty(final String key, String value) {
-        if (hasProperty(key)) {
-            properties.get(key).setTo(value);
+        final int i = indexOfProperty(key);
+        if (i >= 0) {
+            properties[i].setTo(value);
         } else {
-            properties.put(key, new Property(endOfLastProperty, key, value));
+            putProperty(key, new Property(endOfLastProperty, key, value));
+            modified();
         }
     }
 
     public String getProperty(final String key) {
-        if (hasProperty(key)) {
-            return properties.get(key).getValue();
+        final int i = indexOfProperty(key);
+        if (i >= 0) {
+            return properties[i].getValue();
         } else {
             return null;
         }
     }
 
     public String tagsString() {
-        if (tags.isEmpty()) return "";
+        if (tagOrder.length == 0) return "";
         else {
             final StringBuffer sb = new StringBuffer();
-            for (final String tag : tags) {
+            for (final int tag : tagOrder) {
                 sb.append(":");
-                sb.append(tag);
+                sb.append(dictionary.name(tag));
             }
             sb.append(":");
             return sb.toString();
@@ -107,11 +193,175 @@ public class Heading {
 
     @Override
     public int hashCode() {
-        return Objects.hash(heading, tags, properties, timestamps, depth);
+        int propertiesHash = 0;
+        for (int i = 0; i < propertyCount; i++) {
+            propertiesHash += properties[i].getKey().hashCode() ^ properties[i].hashCode();
+        }
+        return Objects.hash(heading, getTags(), propertiesHash, timestamps, depth);
+    }
+
+    /**
+     * @return a hash of the same content as {@link #checksum()}, worked out the first
+     * time it is needed after the heading was parsed or last changed
+     */
+    public long contentHash() {
+        if (!hashed) {
+            final ContentHash hash = new ContentHash().add(heading);
+            hash.add(tagOrder.length);
+            for (final int tag : tagOrder) {
+                hash.add(dictionary.name(tag));
+            }
+            hash.add(propertyCount);
+            for (int i = 0; i < propertyCount; i++) {
+                properties[i].hashInto(hash);
+            }
+            hash.add(timestamps.size());
+            for (final Timestamp ts : timestamps) {
+                ts.hashInto(hash);
+            }
+            contentHash = hash.add(depth).value();
+            hashed = true;
+        }
+        return contentHash;
+    }
+
+    /**
+     * @return {@link #contentHash()} in hex, as it is stored against synced events
+     */
+    public String hash() {
+        return ContentHash.hex(contentHash());
+    }
+
+    /**
+     * @return true if a stored hash is in the form returned by {@link #hash()}, rather
+     * than an older {@link #checksum()}
+     */
+    public static boolean isHash(final String stored) {
+        return ContentHash.isHex(stored);
+    }
+
+    /**
+     * Move this heading into the text which resulted from a document's edits, as if the
+     * heading had been parsed from that text. This is only possible if the edits left the
+     * lines of the heading with the same layout as before.
+     *
+     * @return false if the heading can't be moved, in which case it should be parsed again
+     */
+    boolean rebase(final Document document, final CharSequence edited) {
+        if (item == null) return false;
+        for (final Timestamp ts : timestamps) {
+            // timestamps added to a parsed heading are never written
+            if (!ts.exists()) return false;
+        }
+        if (dirty) {
+            if (item.has(3) != (tagOrder.length != 0)) return false;
+            if (heading.indexOf('\n') >= 0 || heading.endsWith(":")) return false;
+            for (final int tag : tagOrder) {
+                final String name = dictionary.name(tag);
+                for (int i = 0; i < name.length(); i++) {
+                    if (name.charAt(i) == ':' || Character.isWhitespace(name.charAt(i))) return false;
+                }
+            }
+            for (int i = 0; i < propertyCount; i++) {
+                if (!properties[i].canRebase()) return false;
+            }
+        }
+
+        item = item.rebase(document, edited);
+        endOfLastProperty = document.translate(endOfLastProperty);
+        for (int i = 0; i < propertyCount; i++) {
+            properties[i].rebase(document, edited);
+        }
+        for (final Timestamp ts : timestamps) {
+            if (!ts.rebase(document, edited)) return false;
+        }
+        dirty = false;
+        return true;
+    }
+
+    /**
+     * Stop referring to the buffer this was parsed from, so that it can be let go.
+     */
+    void detach() {
+        if (item != null) item = item.detach();
+        for (int i = 0; i < propertyCount; i++) {
+            properties[i].detach();
+        }
+        for (final Timestamp ts : timestamps) {
+            ts.detach();
+        }
+    }
+
+    /**
+     * @return true if this has been changed since it was parsed, so that it needs writing back
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    void modified() {
+        dirty = true;
+        changed();
+    }
+
+    void changed() {
+        hashed = false;
+        for (Heading h = this; h != null && h.subtreeHashed; h = h.parent) {
+            h.subtreeHashed = false;
+        }
+    }
+
+    /**
+     * @return a hash of this heading's content and the subtree hashes of its children,
+     * so that two subtrees with the same hash are the same all the way down
+     */
+    public long subtreeHash() {
+        if (!subtreeHashed) {
+            final ContentHash hash = new ContentHash().add(contentHash()).add(children.size());
+            for (final Heading child : children) {
+                hash.add(child.subtreeHash());
+            }
+            subtreeHash = hash.value();
+            subtreeHashed = true;
+        }
+        return subtreeHash;
+    }
+
+    public Heading getParent() {
+        return parent;
     }
 
+    public List<Heading> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    void unlink() {
+        parent = null;
+        children = Collections.emptyList();
+        subtreeHashed = false;
+    }
+
+    void addChild(final Heading child) {
+        if (children.isEmpty()) children = new ArrayList<>(2);
+        children.add(child);
+        child.parent = this;
+        subtreeHashed = false;
+    }
+
+    /**
+     * The content of the heading as a string. This was stored against synced events
+     * before {@link #hash()}, and is still used to recognise them.
+     */
     public String checksum() {
-        return heading + ":" + tags + ":" + properties + ":" + timestamps + ":" + depth;
+        // the properties are written out as the LinkedHashMap they used to be kept in was
+        final StringBuilder sb = new StringBuilder();
+        sb.append(heading).append(':').append(getTags()).append(":{");
+        for (int i = 0; i < propertyCount; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(properties[i].getKey()).append('=').append(properties[i]);
+        }
+        sb.append("}:").append(timestamps).append(':').append(depth);
+        return sb.toString();
     }
 
     @Override
@@ -120,11 +370,11 @@ public class Heading {
     }
 
     public String propertiesString() {
-        if (properties.isEmpty()) return "";
+        if (propertyCount == 0) return "";
         final StringBuffer sb = new StringBuffer();
         sb.append(":PROPERTIES:\n");
-        for (final Property p : properties.values()) {
-            sb.append(p.propertiesLine());
+        for (int i = 0; i < propertyCount; i++) {
+            sb.append(properties[i].propertiesLine());
         }
         sb.append(":END:\n");
         return sb.toString();
@@ -136,23 +386,25 @@ public class Heading {
 
     public void edit(final List<Edit> edits) {
         if (item != null) {
+            if (!dirty) return;
+
             Edit.replace(item, 1, stars(), edits);
 
             String hStr = heading;
-            if (tags.isEmpty() & item.groups[3] != null) {
+            if (tagOrder.length == 0 & item.has(3)) {
                 Edit.replace(item, 3, "", edits);
-            } else if (item.groups[3] == null && !tags.isEmpty()) {
+            } else if (!item.has(3) && tagOrder.length != 0) {
                 hStr = heading + " " + tagsString();
-            } else if (item.groups[3] != null) {
+            } else if (item.has(3)) {
                 Edit.replace(item, 3, tagsString(), edits);
             }
 
             Edit.replace(item, 2, hStr, edits);
 
-            if (!properties.isEmpty()) {
+            if (propertyCount > 0) {
                 boolean needsPropertiesBlock = true;
-                for (final Property p : properties.values()) {
-                    if (p.exists()) {
+                for (int i = 0; i < propertyCount; i++) {
+                    if (properties[i].exists()) {
                         needsPropertiesBlock = false;
                         break;
                     }
@@ -160,15 +412,15 @@ public class Heading {
 
                 if (needsPropertiesBlock) Edit.insert(endOfLastProperty, ":PROPERTIES:\n", edits);
 
-                for (final Property p : properties.values()) {
-                    p.edit(edits);
+                for (int i = 0; i < propertyCount; i++) {
+                    if (properties[i].isDirty()) properties[i].edit(edits);
                 }
 
                 if (needsPropertiesBlock) Edit.insert(endOfLastProperty, ":END:\n", edits);
             }
 
             for (final Timestamp t : timestamps) {
-                t.edit(edits);
+                if (t.isDirty()) t.edit(edits);
             }
         }
     }
@@ -177,7 +429,7 @@ public class Heading {
         buffer.append(stars());
         buffer.append(" ");
         buffer.append(heading);
-        if (!tags.isEmpty()) {
+        if (tagOrder.length != 0) {
             buffer.append(" ");
             buffer.append(tagsString());
         }
@@ -204,12 +456,14 @@ public class Heading {
 
     public void addTimestamp(Timestamp timestamp) {
         if (timestamp.isValid()) {
+            timestamp.setOwner(this);
             this.timestamps.add(timestamp);
+            changed();
         }
     }
 
     public void addProperty(Property property) {
-        this.properties.put(property.getKey(), property);
+        putProperty(property.getKey(), property);
         this.endOfLastProperty = Math.max(property.getEndPosition(), endOfLastProperty);
     }
 
@@ -230,27 +484,67 @@ public class Heading {
 
     public boolean exists () { return item != null; }
 
+    /**
+     * @return where the heading line starts in the text it was parsed from, or -1 if it wasn't parsed
+     */
+    public int getOffset() {
+        return item == null ? -1 : item.start(0);
+    }
+
+    /**
+     * @return where the last of the heading's own properties and timestamps ends, or -1 if it wasn't parsed
+     */
+    public int getEnd() {
+        if (item == null) return -1;
+        int end = item.end(0);
+        for (int i = 0; i < propertyCount; i++) {
+            end = Math.max(end, properties[i].end());
+        }
+        for (final Timestamp ts : timestamps) {
+            end = Math.max(end, ts.end());
+        }
+        return end;
+    }
+
     public boolean hasAllTags(final Set<String> tags) {
+        TagSet query = TagSet.EMPTY;
         for (final String t : tags) {
-            if (!(this.tags.contains(t) || inheritedTags.contains(t))) return false;
+            final int id = dictionary.find(t);
+            if (id < 0) return false;
+            query = query.with(id);
         }
-        return true;
+        return TagSet.coveredBy(query, this.tags, inheritedTags, fileTags);
     }
 
     public boolean hasAnyTags(final Set<String> tags) {
-        return !(Collections.disjoint(tags, this.tags) && Collections.disjoint(tags, inheritedTags));
+        return TagSet.meets(dictionary.findAll(tags), this.tags, inheritedTags, fileTags);
     }
 
-    public void addInheritedTags(Set<String> filetags) {
-        inheritedTags.addAll(filetags);
+    void addInheritedTags(final TagSet filetags) {
+        fileTags = fileTags.union(filetags);
     }
 
+    /**
+     * @return a copy of this heading's own tags, in order
+     */
     public Set<String> getTags() {
+        final Set<String> result = new LinkedHashSet<>();
+        for (final int tag : tagOrder) {
+            result.add(dictionary.name(tag));
+        }
+        return result;
+    }
+
+    TagSet getTagSet() {
         return tags;
     }
 
+    void setPositionalID(final String positionalID) {
+        this.positionalID = positionalID;
+    }
+
     public String syncID(boolean readOnly) {
-        if (readOnly) return checksum();
+        if (readOnly) return positionalID == null ? hash() : positionalID;
         else return ensureID();
     }
 }
@@ -0,0 +1,540 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Produces the same stream of {@link OrgParser.Token} items as running the alternation
+ * of their patterns over the input, without using regular expressions.
+ *
+ * Each line is classified by its first character, so only lines which start with
+ * '*', '#', ':' or blanks are looked at more closely, and timestamps are only
+ * searched for on lines which contain a '&lt;'.
+ *
+ * The group layout of the items matches the patterns in {@link OrgParser.Token},
+ * so that {@link Heading}, {@link Property} and {@link Timestamp} can't tell the
+ * difference.
+ *
+ * The bodies of the kinds of {@link OrgParser.Block} it is asked to skip produce no
+ * tokens. Inside them only the start of each line is looked at, for the end of the
+ * block or a heading, which also ends it. Below an archived heading there are no
+ * tokens apart from any #+FILETAGS or #+CATEGORY, which still apply to what follows.
+ */
+class LineScanner {
+    private static final String PROPERTIES = ":PROPERTIES:";
+    private static final String END = ":END:";
+    private static final String FILETAGS = "#+FILETAGS:";
+    private static final String CATEGORY = "#+CATEGORY:";
+    private static final String SCHEDULED = "SCHEDULED: ";
+    private static final String DEADLINE = " DEADLINE: ";
+    private static final String BEGIN_SRC = "#+BEGIN_SRC";
+    private static final String END_SRC = "#+END_SRC";
+    private static final String BEGIN_EXAMPLE = "#+BEGIN_EXAMPLE";
+    private static final String END_EXAMPLE = "#+END_EXAMPLE";
+    private static final String LOGBOOK = ":LOGBOOK:";
+    private static final String ARCHIVE = ":ARCHIVE:";
+
+    private CharSequence in;
+    // whether in is a Utf8Text, whose multi-byte line terminators are several characters
+    private boolean utf8;
+    private int end;
+    private int pos;
+    // the offset of in within the whole input, added to the offsets in the items produced
+    private int base;
+
+    private final OrgParser.Skip skip;
+    private final Set<OrgParser.Block> blocks;
+    // the block whose body is being skipped, which may carry on past a reset
+    private OrgParser.Block inside;
+    // the depth of the archived heading whose subtree is being skipped, or 0
+    private int archived;
+    // characters skipped since the count was last added to skip
+    private long skipped;
+
+    LineScanner(final CharSequence in, final OrgParser.Skip skip) {
+        this(in, 0, in.length(), skip);
+    }
+
+    LineScanner(final CharSequence in, final int from, final int to, final OrgParser.Skip skip) {
+        this.in = in;
+        this.utf8 = in instanceof Utf8Text;
+        this.pos = from;
+        this.end = to;
+        this.skip = skip;
+        this.blocks = skip.blocks;
+    }
+
+    /**
+     * @return the timestamp whose opening bracket is at offset bracket of in, with a
+     * SCHEDULED or DEADLINE prefix if there is one which starts after from, or null
+     */
+    static Tokenizer.Item<OrgParser.Token> timestampAt(final CharSequence in, final int from, final int bracket) {
+        return new LineScanner(in, OrgParser.Skip.nothing()).date(from, bracket);
+    }
+
+    /**
+     * Start scanning a new piece of the input, which begins at a line start
+     * and is found at offset base in the whole input.
+     */
+    void reset(final CharSequence in, final int base) {
+        this.in = in;
+        this.utf8 = in instanceof Utf8Text;
+        this.pos = 0;
+        this.end = in.length();
+        this.base = base;
+    }
+
+    /**
+     * @return the next token in the input, or null if there are none left
+     */
+    Tokenizer.Item<OrgParser.Token> next() {
+        while (pos < end) {
+            Tokenizer.Item<OrgParser.Token> item = null;
+            final int eol = lineEnd(pos);
+            if (isLineStart(pos)) {
+                if (archived > 0 ? inArchive(pos) : ((inside != null || !blocks.isEmpty()) && inBlock(pos, eol))) {
+                    skipLine(eol);
+                    continue;
+                }
+                item = lineToken(pos);
+                if (item != null && item.tok == OrgParser.Token.HEADING &&
+                        blocks.contains(OrgParser.Block.ARCHIVE) && isArchived(item)) {
+                    archived = item.length(1);
+                }
+            }
+            if (item == null) {
+                item = dateToken(pos, eol);
+            }
+            if (item != null) {
+                pos = item.end(0) - base;
+                return item;
+            }
+            pos = nextLine(eol);
+        }
+        if (skipped > 0) {
+            skip.add(skipped);
+            skipped = 0;
+        }
+        return null;
+    }
+
+    private void skipLine(final int eol) {
+        final int next = nextLine(eol);
+        skipped += next - pos;
+        pos = next;
+    }
+
+    // line structure, following what ^, $ and . mean for a MULTILINE pattern
+
+    // U+0085, U+2028 and U+2029 as they are seen in a Utf8Text
+    private static final char[] NEL = {0x1C2, 0x185};
+    private static final char[] LS = {0x1E2, 0x180, 0x1A8};
+    private static final char[] PS = {0x1E2, 0x180, 0x1A9};
+
+    /**
+     * @return the length of the line terminator at p, or 0 if there isn't one
+     */
+    private int terminatorLength(final int p) {
+        final char c = in.charAt(p);
+        if (c == '\n' || c == '\r') return 1;
+        if (!utf8) return c == '\u0085' || (c | 1) == '\u2029' ? 1 : 0;
+        if (c == NEL[0]) return startsWith(p, NEL) ? NEL.length : 0;
+        if (c == LS[0]) return startsWith(p, LS) || startsWith(p, PS) ? LS.length : 0;
+        return 0;
+    }
+
+    private boolean isLineStart(final int p) {
+        if (p == 0) return true;
+        final char c = in.charAt(p - 1);
+        if (c == '\r') return in.charAt(p) != '\n';
+        if (c == '\n') return true;
+        if (!utf8) return c == '\u0085' || (c | 1) == '\u2029';
+        if (c == NEL[1]) return startsWith(p - NEL.length, NEL);
+        if ((c | 1) == PS[2]) return startsWith(p - LS.length, LS) || startsWith(p - PS.length, PS);
+        return false;
+    }
+
+    private int lineEnd(int p) {
+        while (p < end && terminatorLength(p) == 0) p++;
+        return p;
+    }
+
+    /**
+     * @return the start of the line after the one which ends at eol
+     */
+    private int nextLine(final int eol) {
+        return eol < end ? eol + terminatorLength(eol) : end;
+    }
+
+    private boolean at(final int p, final char c) {
+        return p < end && in.charAt(p) == c;
+    }
+
+    private boolean blank(final int p) {
+        return p < end && (in.charAt(p) == ' ' || in.charAt(p) == '\t');
+    }
+
+    private boolean digits(int p, int n) {
+        if (p + n > end) return false;
+        for (; n > 0; n--, p++) {
+            final char c = in.charAt(p);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    private boolean letters(int p, int n) {
+        if (p + n > end) return false;
+        for (; n > 0; n--, p++) {
+            final char c = in.charAt(p);
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z'))) return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(final int p, final String s) {
+        if (p < 0 || p + s.length() > end) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (in.charAt(p + i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(final int p, final char[] s) {
+        if (p < 0 || p + s.length > end) return false;
+        for (int i = 0; i < s.length; i++) {
+            if (in.charAt(p + i) != s[i]) return false;
+        }
+        return true;
+    }
+
+    private Tokenizer.Item<OrgParser.Token> item(final OrgParser.Token tok,
+                                                 final CharSequence in,
+                                                 final int... spans) {
+        if (base != 0) {
+            for (int i = 0; i < spans.length; i++) {
+                if (spans[i] >= 0) spans[i] += base;
+            }
+        }
+        return new Tokenizer.Item<>(tok, in, base, spans);
+    }
+
+    // tokens which have to start at the start of a line
+
+    private Tokenizer.Item<OrgParser.Token> lineToken(final int p) {
+        switch (in.charAt(p)) {
+            case '*':
+                return heading(p);
+            case '#':
+                return keyword(p);
+            case ' ':
+            case '\t':
+            case ':':
+                return drawer(p);
+            default:
+                return null;
+        }
+    }
+
+    private Tokenizer.Item<OrgParser.Token> heading(final int p) {
+        final int eol = lineEnd(p);
+        int i = p;
+        while (i < eol && in.charAt(i) == '*') i++;
+
+        // trim trailing blanks, and find the last word and the blanks before it
+        int t = eol;
+        while (t > i && blank(t - 1)) t--;
+        int u = t;
+        while (u > i && !blank(u - 1)) u--;
+        int r = u;
+        while (r > i && blank(r - 1)) r--;
+
+        final boolean tagged = r < u && isTags(u, t);
+
+        if (t == i) {
+            return item(OrgParser.Token.HEADING, in, p, eol, p, i, -1, -1, -1, -1);
+        } else if (tagged && r == i) {
+            return item(OrgParser.Token.HEADING, in, p, eol, p, i, -1, -1, u, t);
+        } else if (in.charAt(i) == ' ') {
+            int s = i;
+            while (at(s, ' ')) s++;
+            if (tagged) {
+                return item(OrgParser.Token.HEADING, in, p, eol, p, i, s, r, u, t);
+            } else {
+                return item(OrgParser.Token.HEADING, in, p, eol, p, i, s, t, -1, -1);
+            }
+        } else {
+            return null;
+        }
+    }
+
+    private boolean isTags(final int from, final int to) {
+        if (to - from < 3 || in.charAt(from) != ':' || in.charAt(to - 1) != ':') return false;
+        for (int i = from; i < to; i++) {
+            final char c = in.charAt(i);
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                    c == '_' || c == '@' || c == '#' || c == '%' || c == ':')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Tokenizer.Item<OrgParser.Token> keyword(final int p) {
+        final OrgParser.Token tok;
+        final int v;
+        if (startsWith(p, FILETAGS)) {
+            tok = OrgParser.Token.FILETAGS;
+            v = p + FILETAGS.length();
+        } else if (startsWith(p, CATEGORY)) {
+            tok = OrgParser.Token.CATEGORY;
+            v = p + CATEGORY.length();
+        } else {
+            return null;
+        }
+        final int eol = lineEnd(p);
+        final int value = valueStart(v, eol);
+        if (value < 0) return null;
+        return item(tok, in, p, eol, value, eol);
+    }
+
+    /**
+     * Where the value in ": *(.+)$" starts, given the position after the colon.
+     * If there is only space, the last space is the value.
+     */
+    private int valueStart(final int v, final int eol) {
+        int w = v;
+        while (w < eol && in.charAt(w) == ' ') w++;
+        if (w < eol) return w;
+        else if (w > v) return w - 1;
+        else return -1;
+    }
+
+    private Tokenizer.Item<OrgParser.Token> drawer(final int p) {
+        final int eol = lineEnd(p);
+        int i = p;
+        while (blank(i)) i++;
+
+        if (isMarker(i, eol, PROPERTIES)) {
+            return item(OrgParser.Token.BEGIN_PROPS, in, p, eol);
+        }
+
+        int k = p;
+        while (at(k, ' ')) k++;
+        if (at(k, ':')) {
+            int j = k + 1;
+            while (j < eol && isKeyChar(in.charAt(j))) j++;
+            if (j > k + 1 && at(j, ':')) {
+                final int value = valueStart(j + 1, eol);
+                if (value >= 0) {
+                    return item(OrgParser.Token.PROPERTY, in, p, eol, k + 1, j, value, eol);
+                }
+            }
+        }
+
+        if (isMarker(i, eol, END)) {
+            return item(OrgParser.Token.END_PROPS, in, p, eol);
+        }
+
+        return null;
+    }
+
+    private boolean isMarker(final int i, final int eol, final String marker) {
+        if (!startsWith(i, marker)) return false;
+        int j = i + marker.length();
+        while (blank(j)) j++;
+        return j == eol;
+    }
+
+    // archived subtrees
+
+    private boolean isArchived(final Tokenizer.Item<OrgParser.Token> heading) {
+        if (!heading.has(3)) return false;
+        final int to = heading.end(3) - base - ARCHIVE.length();
+        for (int i = heading.start(3) - base; i <= to; i++) {
+            if (startsWith(i, ARCHIVE)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the line at p is part of the archived subtree being skipped
+     */
+    private boolean inArchive(final int p) {
+        if (at(p, '*')) {
+            int i = p;
+            while (at(i, '*')) i++;
+            if (i - p <= archived && heading(p) != null) {
+                archived = 0;
+                return false;
+            }
+        } else if (at(p, '#') && keyword(p) != null) {
+            return false;
+        }
+        return true;
+    }
+
+    // blocks and drawers whose bodies are skipped
+
+    /**
+     * @return true if the line from p to eol is the start, body or end of a block being skipped
+     */
+    private boolean inBlock(final int p, final int eol) {
+        int i = p;
+        while (blank(i)) i++;
+
+        if (inside == null) {
+            final OrgParser.Block block = blockStart(i, eol);
+            if (block == null || !blocks.contains(block)) return false;
+            inside = block;
+            return true;
+        } else if (at(p, '*') && heading(p) != null) {
+            inside = null;
+            return false;
+        } else {
+            if (isBlockEnd(inside, i, eol)) inside = null;
+            return true;
+        }
+    }
+
+    private OrgParser.Block blockStart(final int i, final int eol) {
+        if (at(i, '#')) {
+            if (isBlockLine(i, eol, BEGIN_SRC)) return OrgParser.Block.SRC;
+            if (isBlockLine(i, eol, BEGIN_EXAMPLE)) return OrgParser.Block.EXAMPLE;
+        } else if (at(i, ':')) {
+            if (isMarker(i, eol, LOGBOOK)) return OrgParser.Block.LOGBOOK;
+        }
+        return null;
+    }
+
+    private boolean isBlockEnd(final OrgParser.Block block, final int i, final int eol) {
+        switch (block) {
+            case SRC:
+                return isBlockLine(i, eol, END_SRC);
+            case EXAMPLE:
+                return isBlockLine(i, eol, END_EXAMPLE);
+            case LOGBOOK:
+                return isMarker(i, eol, END);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether a line starts with a block keyword in any case, followed by blanks or the end of the line.
+     */
+    private boolean isBlockLine(final int i, final int eol, final String keyword) {
+        if (i + keyword.length() > eol) return false;
+        for (int k = 0; k < keyword.length(); k++) {
+            if (Character.toUpperCase(in.charAt(i + k)) != keyword.charAt(k)) return false;
+        }
+        final int j = i + keyword.length();
+        return j == eol || blank(j);
+    }
+
+    private static boolean isKeyChar(final char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ||
+                c == ' ' || c == '_' || c == '-';
+    }
+
+    // timestamps, which can be anywhere
+
+    private Tokenizer.Item<OrgParser.Token> dateToken(final int from, final int eol) {
+        for (int q = from; q < eol; q++) {
+            if (in.charAt(q) != '<') continue;
+
+            final Tokenizer.Item<OrgParser.Token> item = date(from, q);
+            if (item != null) return item;
+        }
+        return null;
+    }
+
+    /**
+     * Try and match a timestamp whose opening bracket is at q, including a
+     * SCHEDULED or DEADLINE prefix if there is one which starts after from.
+     */
+    private Tokenizer.Item<OrgParser.Token> date(final int from, final int q) {
+        // start/end of groups 0 - 9, as in OrgParser.DATE_REGEX
+        final int[] g = new int[20];
+        Arrays.fill(g, -1);
+
+        int i = q + 1;
+        if (!ymd(i)) return sexp(q);
+        g[6] = i; g[7] = i + 10;
+        i += 10;
+
+        if (at(i, ' ') && letters(i + 1, 3)) i += 4;
+
+        if (at(i, ' ') && hhmm(i + 1)) {
+            g[8] = i + 1;
+            i += 6;
+            if (at(i, '-') && hhmm(i + 1)) {
+                g[10] = i + 1; g[11] = i + 6;
+                i += 6;
+            }
+            g[9] = i;
+        }
+
+        if (at(i, ' ') && at(i + 1, '+') && digits(i + 2, 1)) {
+            int j = i + 3;
+            while (digits(j, 1)) j++;
+            if (j < end && "wmdy".indexOf(in.charAt(j)) >= 0) {
+                g[12] = i + 1; g[13] = j + 1;
+                i = j + 1;
+            }
+        }
+
+        if (!at(i, '>')) return sexp(q);
+        i++;
+
+        if (startsWith(i, "--<") && ymd(i + 3)) {
+            int j = i + 3;
+            final int ymd = j;
+            j += 10;
+            if (at(j, ' ') && letters(j + 1, 3)) j += 4;
+            int time = -1;
+            if (at(j, ' ') && hhmm(j + 1)) {
+                time = j + 1;
+                j += 6;
+            }
+            if (at(j, '>')) {
+                g[14] = ymd; g[15] = ymd + 10;
+                if (time >= 0) { g[16] = time; g[17] = time + 5; }
+                i = j + 1;
+            }
+        }
+
+        g[4] = q; g[5] = i;
+
+        if (startsWith(q - SCHEDULED.length(), SCHEDULED) || startsWith(q - DEADLINE.length(), DEADLINE)) {
+            final int c = q - SCHEDULED.length();
+            if (c >= from) {
+                g[2] = c; g[3] = q;
+            }
+        }
+
+        g[0] = g[2] >= 0 ? g[2] : q;
+        g[1] = i;
+
+        return item(OrgParser.Token.DATETIME, in, g);
+    }
+
+    private Tokenizer.Item<OrgParser.Token> sexp(final int q) {
+        if (!startsWith(q, "<%%(")) return null;
+        int t = q + 4;
+        while (t < end && in.charAt(t) != '>' && in.charAt(t) != '\n') t++;
+        if (t < end && in.charAt(t) == '>' && t - 1 >= q + 5 && in.charAt(t - 1) == ')') {
+            return item(OrgParser.Token.DATETIME, in,
+                    q, t + 1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, q, t + 1);
+        }
+        return null;
+    }
+
+    private boolean ymd(final int p) {
+        return digits(p, 4) && at(p + 4, '-') && digits(p + 5, 2) && at(p + 7, '-') && digits(p + 8, 2);
+    }
+
+    private boolean hhmm(final int p) {
+        return digits(p, 2) && at(p + 2, ':') && digits(p + 3, 2);
+    }
+}
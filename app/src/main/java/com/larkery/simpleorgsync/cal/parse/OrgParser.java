@@ -1,13 +1,18 @@
 package com.larkery.simpleorgsync.cal.parse;
 
 
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 // [<\\[]([0-9]{4}-[0-9]{2}-[0-9]{2} ?[^\\]\\x{d}\\x{a}>]*?)[>\\]]|(<[0-9]+-[0-9]+-[0-9]+[^>\\x{a}]+?\\+[0-9]+[ymwd]>)|<%%\\([^>\\x{a}]+\\)>)?
 
@@ -64,41 +69,323 @@ public class OrgParser {
         }
     }
 
-    public static final Tokenizer<Token> tokenizer;
+    /**
+     * Parts of a file which can be skipped without looking for tokens in them.
+     */
+    public enum Block {
+        SRC,     // #+BEGIN_SRC ... #+END_SRC
+        EXAMPLE, // #+BEGIN_EXAMPLE ... #+END_EXAMPLE
+        LOGBOOK, // :LOGBOOK: ... :END:
+        ARCHIVE  // everything under a heading tagged :ARCHIVE:
+    }
 
-    static {
-        tokenizer = new Tokenizer<>();
-        for (final Token t : Token.values()) {
-            tokenizer.add(t, t.pattern);
+    /**
+     * Which blocks to skip while parsing, and how much of the input they took up.
+     */
+    public static class Skip {
+        final Set<Block> blocks;
+        private final AtomicLong skipped = new AtomicLong();
+
+        public Skip(final Set<Block> blocks) {
+            this.blocks = blocks;
+        }
+
+        public static Skip nothing() {
+            return new Skip(EnumSet.noneOf(Block.class));
         }
+
+        /**
+         * @return the number of characters of input which have been skipped so far
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        void add(final long n) {
+            skipped.addAndGet(n);
+        }
+    }
+
+    /**
+     * Receives headings from {@link #parse(Reader, TimeZone, String, Skip, Listener)}
+     */
+    public interface Listener {
+        /**
+         * Called with each heading when its line is read, in document order, before
+         * it has any timestamps or properties.
+         */
+        void opened(Heading heading);
+
+        /**
+         * Called with each heading once its subtree has ended.
+         */
+        void heading(Heading heading);
     }
 
     public static List<Heading> parse(final CharSequence input, final TimeZone zone, String category) {
+        return parse(input, zone, category, Skip.nothing());
+    }
+
+    /**
+     * Parse the input, ignoring anything inside the given kinds of block. If archived
+     * subtrees are skipped, an archived heading is still in the result, but without
+     * any timestamps or properties it has, or any headings below it.
+     */
+    public static List<Heading> parse(final CharSequence input, final TimeZone zone, String category,
+                                      final Skip skip) {
+        final State state = new State(zone, category, null, new TagDictionary());
+        final LineScanner scanner = new LineScanner(input, skip);
+
+        for (Tokenizer.Item<Token> item = scanner.next(); item != null; item = scanner.next()) {
+            state.accept(item);
+        }
+
+        for (final Heading h : state.headings) {
+            h.addInheritedTags(state.filetags);
+        }
+
+        return state.headings;
+    }
+
+    // below this many characters per chunk it isn't worth parsing in parallel
+    private static final int MIN_CHUNK = 256 * 1024;
+
+    /**
+     * Parse a large input on the common fork-join pool, giving the same result
+     * as {@link #parse(CharSequence, TimeZone, String, Skip)}.
+     *
+     * The input is cut into chunks at top-level headings, which is where the parser
+     * forgets any inherited tags and which also ends any block. The chunks are parsed separately, and then
+     * stitched back together in order, carrying any #+CATEGORY from one chunk into
+     * the headings at the start of the next and applying FILETAGS from all of them.
+     */
+    public static List<Heading> parseInParallel(final CharSequence input, final TimeZone zone, final String category,
+                                                final Skip skip) {
+        final int[] bounds = split(input, ForkJoinPool.getCommonPoolParallelism());
+
+        if (bounds.length <= 2) return parse(input, zone, category, skip);
+
+        final State[] chunks = new State[bounds.length - 1];
+        ForkJoinPool.commonPool().invoke(new ChunkTask(input, zone, category, skip, new TagDictionary(),
+                bounds, chunks, 0, chunks.length));
+
+        final List<Heading> headings = new ArrayList<>();
+        TagSet filetags = TagSet.EMPTY;
+        String currentCategory = category;
+
+        for (final State chunk : chunks) {
+            final int uncategorised = chunk.firstCategory < 0 ? chunk.headings.size() : chunk.firstCategory;
+            for (int i = 0; i < uncategorised; i++) {
+                chunk.headings.get(i).setCategory(currentCategory);
+            }
+            if (chunk.firstCategory >= 0) {
+                currentCategory = chunk.category;
+            }
+            headings.addAll(chunk.headings);
+            filetags = filetags.union(chunk.filetags);
+        }
+
+        for (final Heading h : headings) {
+            h.addInheritedTags(filetags);
+        }
+
+        return headings;
+    }
+
+    /**
+     * @return offsets where chunks of the input start, followed by the input length.
+     * Each chunk after the first starts with a top-level heading.
+     */
+    private static int[] split(final CharSequence input, final int parallelism) {
+        final int n = input.length();
+        final int size = Math.max(MIN_CHUNK, n / (4 * Math.max(1, parallelism)));
+        final List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+
+        int p = size;
+        while (p < n) {
+            int q = p;
+            while (q + 1 < n && !(input.charAt(q - 1) == '\n' && input.charAt(q) == '*' && input.charAt(q + 1) == ' ')) {
+                q++;
+            }
+            if (q + 1 >= n) break;
+            bounds.add(q);
+            p = q + size;
+        }
+
+        bounds.add(n);
+
+        final int[] result = new int[bounds.size()];
+        for (int i = 0; i < result.length; i++) result[i] = bounds.get(i);
+        return result;
+    }
+
+    private static class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final CharSequence input;
+        private final TimeZone zone;
+        private final String category;
+        private final Skip skip;
+        private final TagDictionary dictionary;
+        private final int[] bounds;
+        private final State[] chunks;
+        private final int from;
+        private final int to;
+
+        ChunkTask(final CharSequence input, final TimeZone zone, final String category, final Skip skip,
+                  final TagDictionary dictionary, final int[] bounds, final State[] chunks,
+                  final int from, final int to) {
+            this.input = input;
+            this.zone = zone;
+            this.category = category;
+            this.skip = skip;
+            this.dictionary = dictionary;
+            this.bounds = bounds;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                // only the first chunk knows its category in advance
+                final State state = new State(zone, from == 0 ? category : null, null, dictionary);
+                final LineScanner scanner = new LineScanner(input, bounds[from], bounds[from + 1], skip);
+                for (Tokenizer.Item<Token> item = scanner.next(); item != null; item = scanner.next()) {
+                    state.accept(item);
+                }
+                chunks[from] = state;
+            } else {
+                final int mid = (from + to) / 2;
+                invokeAll(new ChunkTask(input, zone, category, skip, dictionary, bounds, chunks, from, mid),
+                        new ChunkTask(input, zone, category, skip, dictionary, bounds, chunks, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Parse a file without holding all of it in memory.
+     *
+     * Each heading is given to the listener once its subtree has ended, so only the
+     * headings on the path to the current one are kept. Offsets are the same as if the
+     * whole input had been parsed with {@link #parse(CharSequence, TimeZone, String, Skip)}.
+     *
+     * FILETAGS are normally in the file header, before any headings; a heading gets the
+     * FILETAGS which have been seen by the time it is given to the listener.
+     */
+    public static void parse(final Reader input, final TimeZone zone, String category,
+                             final Skip skip, final Listener listener) throws IOException {
+        final State state = new State(zone, category, listener, new TagDictionary());
+        final LineScanner scanner = new LineScanner("", skip);
+        final StringBuilder line = new StringBuilder();
+        final char[] buffer = new char[8192];
+        int offset = 0;
+        int n;
+
+        // tokens never cross a \n, so each line can be scanned on its own
+        while ((n = input.read(buffer)) >= 0) {
+            int from = 0;
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == '\n') {
+                    line.append(buffer, from, i + 1 - from);
+                    from = i + 1;
+                    offset = scanLine(scanner, line, offset, state);
+                }
+            }
+            line.append(buffer, from, n - from);
+        }
+
+        if (line.length() > 0) {
+            scanLine(scanner, line, offset, state);
+        }
+
+        state.finish();
+    }
+
+    /**
+     * Parse a file of UTF-8, such as one mapped into memory, without decoding it. Only the
+     * text of headings, properties and timestamps is decoded, when it is asked for, and
+     * offsets are byte offsets; see {@link Utf8Text}.
+     *
+     * Headings are given to the listener as by {@link #parse(Reader, TimeZone, String, Skip, Listener)},
+     * with their own copies of their text, so the buffer can be let go once this returns.
+     */
+    public static void parse(final ByteBuffer utf8, final TimeZone zone, String category,
+                             final Skip skip, final Listener listener) {
+        final State state = new State(zone, category, listener, new TagDictionary());
+        final LineScanner scanner = new LineScanner(new Utf8Text(utf8), skip);
+        for (Tokenizer.Item<Token> item = scanner.next(); item != null; item = scanner.next()) {
+            state.accept(item);
+        }
+        state.finish();
+    }
+
+    private static int scanLine(final LineScanner scanner, final StringBuilder line,
+                                final int offset, final State state) {
+        scanner.reset(line.toString(), offset);
+        for (Tokenizer.Item<Token> item = scanner.next(); item != null; item = scanner.next()) {
+            state.accept(item);
+        }
+        final int next = offset + line.length();
+        line.setLength(0);
+        return next;
+    }
+
+    /**
+     * What the parser knows at a given point in the token stream.
+     *
+     * Without a listener, headings are collected in document order. With one,
+     * they are passed on as their subtrees end.
+     */
+    static class State {
+        final TimeZone zone;
+        String category;
+        final Listener listener;
+
         Heading thisHeading = null;
         boolean inProps = false;
-        final LinkedList<Set<String>> inheritTags = new LinkedList<>();
+        final TagDictionary dictionary;
+        final LinkedList<TagSet> inheritTags = new LinkedList<>();
+        final LinkedList<Heading> open = new LinkedList<>();
         final List<Heading> headings = new ArrayList<>();
-        final Set<String> filetags = new HashSet<>();
+        TagSet filetags = TagSet.EMPTY;
+        // how many headings had been collected when the first #+CATEGORY was seen
+        int firstCategory = -1;
 
-        for (Tokenizer.Item<Token> item : tokenizer.items(input)) {
+        State(final TimeZone zone, final String category, final Listener listener,
+              final TagDictionary dictionary) {
+            this.zone = zone;
+            this.category = category;
+            this.listener = listener;
+            this.dictionary = dictionary;
+        }
+
+        void accept(final Tokenizer.Item<Token> item) {
             switch (item.tok) {
                 case HEADING:
                     // start a new heading, which runs from the start
                     // of this heading to the start of the next one or EOF
-                    int depth = item.groups[1].length();
+                    int depth = item.length(1);
                     while (depth <= inheritTags.size()) {
                         inheritTags.pop();
                     }
-                    Heading newHeading = new Heading(item, inheritTags.peek(), category);
+                    closeTo(depth);
+                    Heading newHeading = new Heading(item, dictionary, inheritTags.peek(), category);
 
-                    inheritTags.push(newHeading.getTags());
+                    inheritTags.push(newHeading.getTagSet());
 
                     inProps = false;
                     if (newHeading.getHeading() == null) {
                         System.err.println("Invalid heading! " + item);
-                    } else {
+                    } else if (listener == null) {
                         headings.add(newHeading);
                     }
+                    if (listener != null) {
+                        if (newHeading.getHeading() != null) listener.opened(newHeading);
+                        open.push(newHeading);
+                    }
                     thisHeading = newHeading;
                     break;
                 case DATETIME:
@@ -118,21 +405,33 @@ public class OrgParser {
                     }
                     break;
                 case FILETAGS:
-                    final String[] tags = item.groups[1].split(":");
-                    filetags.addAll(Arrays.asList(tags));
+                    for (final String tag : item.group(1).split(":")) {
+                        if (!tag.isEmpty()) filetags = filetags.with(dictionary.intern(tag));
+                    }
                     break;
                 case CATEGORY:
-                    category = item.groups[1];
+                    if (firstCategory < 0) firstCategory = headings.size();
+                    category = item.group(1);
                     break;
             }
         }
 
-        filetags.remove("");
-
-        for (final Heading h : headings) {
-            h.addInheritedTags(filetags);
+        /**
+         * Pass on any open headings whose subtrees are ended by a heading at this depth.
+         */
+        private void closeTo(final int depth) {
+            while (!open.isEmpty() && open.peek().getDepth() >= depth) {
+                final Heading done = open.pop();
+                if (done.getHeading() != null) {
+                    done.addInheritedTags(filetags);
+                    done.detach();
+                    listener.heading(done);
+                }
+            }
         }
 
-        return headings;
+        void finish() {
+            closeTo(0);
+        }
     }
 }
@@ -0,0 +1,136 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The headings of a file as a tree, in which each heading has a hash of its whole
+ * subtree. A {@link Snapshot} of the hashes can be kept after a sync, and compared
+ * with the next parse of the file without visiting subtrees which are the same.
+ */
+public class Outline {
+    private final List<Heading> roots = new ArrayList<>();
+
+    /**
+     * Link up the parents and children of headings from a single file, in file order.
+     */
+    public Outline(final List<Heading> headings) {
+        for (final Heading heading : headings) {
+            heading.unlink();
+        }
+
+        final List<Heading> stack = new ArrayList<>();
+        for (final Heading heading : headings) {
+            int top = stack.size();
+            while (top > 0 && stack.get(top - 1).getDepth() >= heading.getDepth()) top--;
+            stack.subList(top, stack.size()).clear();
+
+            if (top == 0) roots.add(heading);
+            else stack.get(top - 1).addChild(heading);
+
+            stack.add(heading);
+        }
+    }
+
+    public List<Heading> getRoots() {
+        return roots;
+    }
+
+    /**
+     * The hashes of an outline at some point, without the headings themselves.
+     */
+    public static class Snapshot {
+        private final long key;
+        private final long contentHash;
+        private final long subtreeHash;
+        private final Snapshot[] children;
+        private Map<Long, Snapshot> byKey;
+
+        private Snapshot(final long key, final long contentHash, final long subtreeHash,
+                         final Snapshot[] children) {
+            this.key = key;
+            this.contentHash = contentHash;
+            this.subtreeHash = subtreeHash;
+            this.children = children;
+        }
+
+        /**
+         * @return the child with the given key, which is usually at the same index as before
+         */
+        private Snapshot child(final int index, final long key) {
+            if (index < children.length && children[index].key == key) return children[index];
+            if (byKey == null) {
+                byKey = new HashMap<>();
+                for (final Snapshot child : children) {
+                    byKey.put(child.key, child);
+                }
+            }
+            return byKey.get(key);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(0, 0, 0, roots);
+    }
+
+    private static Snapshot snapshot(final long key, final long contentHash, final long subtreeHash,
+                                     final List<Heading> children) {
+        final Snapshot[] result = new Snapshot[children.size()];
+        final long[] keys = keys(children);
+        for (int i = 0; i < result.length; i++) {
+            final Heading child = children.get(i);
+            result[i] = snapshot(keys[i], child.contentHash(), child.subtreeHash(), child.getChildren());
+        }
+        return new Snapshot(key, contentHash, subtreeHash, result);
+    }
+
+    /**
+     * Collect the headings whose content is not the same as in a snapshot, either
+     * because they have changed or because they weren't there.
+     * A heading is matched by its title, and which of its siblings with that title it is.
+     */
+    public void changedSince(final Snapshot previous, final Collection<Heading> changed) {
+        changedSince(previous, roots, changed);
+    }
+
+    private static void changedSince(final Snapshot previous, final List<Heading> children,
+                                     final Collection<Heading> changed) {
+        final long[] keys = keys(children);
+        for (int i = 0; i < keys.length; i++) {
+            final Heading child = children.get(i);
+            final Snapshot before = previous.child(i, keys[i]);
+            if (before == null) {
+                addAll(child, changed);
+            } else if (before.subtreeHash != child.subtreeHash()) {
+                if (before.contentHash != child.contentHash()) changed.add(child);
+                changedSince(before, child.getChildren(), changed);
+            }
+        }
+    }
+
+    private static void addAll(final Heading heading, final Collection<Heading> changed) {
+        changed.add(heading);
+        for (final Heading child : heading.getChildren()) {
+            addAll(child, changed);
+        }
+    }
+
+    /**
+     * @return a key for each heading, from its title and how many siblings before it have that title
+     */
+    private static long[] keys(final List<Heading> siblings) {
+        final long[] keys = new long[siblings.size()];
+        final Map<String, Integer> seen = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            final String title = siblings.get(i).getHeading();
+            final Integer count = seen.get(title);
+            final int ordinal = count == null ? 0 : count;
+            seen.put(title, ordinal + 1);
+            keys[i] = new ContentHash().add(title).add(ordinal).value();
+        }
+        return keys;
+    }
+}
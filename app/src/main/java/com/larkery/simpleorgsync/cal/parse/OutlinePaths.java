@@ -0,0 +1,52 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gives each heading of a file an ID made from the file and the titles of the
+ * heading and its ancestors, numbered when that path occurs more than once.
+ *
+ * The ID stays the same when the content of the heading changes, so it can
+ * stand in for the ID property when nothing is written back to the file.
+ */
+public class OutlinePaths {
+    private final String file;
+    // titles of the ancestors of the next heading, and their depths
+    private final List<String> titles = new ArrayList<>();
+    private final List<Integer> depths = new ArrayList<>();
+    private final Map<Long, Integer> seen = new HashMap<>();
+
+    public OutlinePaths(final String file) {
+        this.file = file;
+    }
+
+    /**
+     * Set the positional ID of a heading; this must see every heading in the
+     * file, in document order, for the IDs to mean anything. When parsing with a
+     * {@link OrgParser.Listener}, that is the order of {@link OrgParser.Listener#opened(Heading)}.
+     */
+    public void add(final Heading heading) {
+        int top = depths.size();
+        while (top > 0 && depths.get(top - 1) >= heading.getDepth()) top--;
+        titles.subList(top, titles.size()).clear();
+        depths.subList(top, depths.size()).clear();
+
+        final ContentHash hash = new ContentHash().add(file);
+        for (final String title : titles) {
+            hash.add(title);
+        }
+        final long path = hash.add(heading.getHeading()).value();
+
+        final Integer count = seen.get(path);
+        final int ordinal = count == null ? 0 : count;
+        seen.put(path, ordinal + 1);
+
+        heading.setPositionalID(ContentHash.hex(path) + "-" + ordinal);
+
+        titles.add(heading.getHeading());
+        depths.add(heading.getDepth());
+    }
+}
@@ -4,15 +4,31 @@ import java.util.List;
 import java.util.Objects;
 
 public class Property {
+    // keys which come up often enough to share one string between all their properties
+    private static final String[] COMMON_KEYS = {
+            "ID", "LOCATION", "CATEGORY", "CUSTOM_ID", "STYLE", "LAST_REPEAT", "ORDERED", "Effort",
+            "ARCHIVE_TIME", "ARCHIVE_FILE", "ARCHIVE_OLPATH", "ARCHIVE_CATEGORY", "ARCHIVE_TODO", "ARCHIVE_ITAGS"
+    };
+
     private Tokenizer.Item<OrgParser.Token> item;
+    // for a parsed property, these stay null and are read from the item, unless
+    // the key is a common one or the value has been changed
     private String key;
     private String value;
     private int offset;
+    // set when the value is changed after parsing
+    private boolean dirty = false;
+    // told when the value changes
+    private Heading owner;
 
     public Property(final Tokenizer.Item<OrgParser.Token> item) {
         this.item = item;
-        this.key = item.groups[1];
-        this.value = item.groups[2];
+        for (final String common : COMMON_KEYS) {
+            if (item.groupEquals(1, common)) {
+                this.key = common;
+                break;
+            }
+        }
     }
 
     public Property(int offset, String key, String value) {
@@ -23,43 +39,87 @@ public class Property {
 
     public void edit(final List<Edit> edits) {
         if (this.item != null) {
-            Edit.replace(item, 2, value, edits);
+            if (dirty) Edit.replace(item, 2, value, edits);
         } else {
             Edit.insert(offset, propertiesLine(), edits);
         }
     }
 
     public String getValue() {
-        return value;
+        return value == null ? item.group(2) : value;
     }
 
     public void setTo(String to) {
         this.value = to;
+        this.dirty = true;
+        if (owner != null) owner.modified();
+    }
+
+    /**
+     * @return true if this needs writing back, because it has been changed or wasn't parsed
+     */
+    public boolean isDirty() {
+        return dirty || item == null;
+    }
+
+    void setOwner(final Heading owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return false if this wasn't in the file before it was edited, or now isn't a single property line
+     */
+    boolean canRebase() {
+        return item != null && (value == null || value.indexOf('\n') < 0);
+    }
+
+    void rebase(final Document document, final CharSequence edited) {
+        item = item.rebase(document, edited);
+        dirty = false;
+    }
+
+    void hashInto(final ContentHash hash) {
+        if (key == null) item.hashGroup(1, hash);
+        else hash.add(key);
+        if (value == null) item.hashGroup(2, hash);
+        else hash.add(value);
     }
 
     public String propertiesLine() {
-        return String.format(":%s: %s\n", key, value);
+        return String.format(":%s: %s\n", getKey(), getValue());
     }
 
     public String getKey() {
-        return key;
+        return key == null ? item.group(1) : key;
+    }
+
+    boolean hasKey(final String key) {
+        return this.key == null ? item.groupEquals(1, key) : this.key.equals(key);
     }
 
     public int getEndPosition() {
-        if (this.item != null) return item.ends[0] + 1;
+        if (this.item != null) return item.end(0) + 1;
         else return -1;
     }
 
+    int end() {
+        return item == null ? -1 : item.end(0);
+    }
+
+    void detach() {
+        if (item != null) item = item.detach();
+    }
+
     public boolean exists() {
         return item != null;
     }
 
     public String toString() {
-        return key+"="+value;
+        return getKey() + "=" + getValue();
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(key, value);
+        return Objects.hash(getKey(), getValue());
     }
 }
@@ -0,0 +1,61 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Numbers the distinct tags seen while parsing a file, so that sets of
+ * them can be held as a {@link TagSet}.
+ *
+ * Looking up a tag doesn't lock, so the chunks of a parallel parse can share one.
+ */
+final class TagDictionary {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    // names[id] is the tag with that id; the array is replaced when it grows
+    private volatile String[] names = new String[16];
+    private int size = 0;
+
+    /**
+     * @return the id of a tag, or -1 if it has never been seen
+     */
+    int find(final String tag) {
+        final Integer id = ids.get(tag);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the id of a tag, giving it a new one if it has never been seen
+     */
+    int intern(final String tag) {
+        final Integer id = ids.get(tag);
+        if (id != null) return id;
+
+        synchronized (this) {
+            final Integer again = ids.get(tag);
+            if (again != null) return again;
+
+            String[] n = names;
+            if (size == n.length) n = Arrays.copyOf(n, 2 * size);
+            n[size] = tag;
+            names = n;
+            ids.put(tag, size);
+            return size++;
+        }
+    }
+
+    String name(final int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the set of the ids of the given tags which are known, leaving out any which aren't
+     */
+    TagSet findAll(final Iterable<String> tags) {
+        TagSet result = TagSet.EMPTY;
+        for (final String tag : tags) {
+            final int id = find(tag);
+            if (id >= 0) result = result.with(id);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of tag ids from a {@link TagDictionary}, as a bitset.
+ *
+ * The first 64 ids are held in one word, and only sets with a larger id in
+ * them need an array for the rest. Since a set never changes, one can be
+ * shared between all the headings which inherit it.
+ */
+final class TagSet {
+    static final TagSet EMPTY = new TagSet(0, null);
+
+    // ids 0 - 63
+    private final long bits;
+    // ids from 64 on, 64 to a word, or null if there are none
+    private final long[] spill;
+
+    private TagSet(final long bits, final long[] spill) {
+        this.bits = bits;
+        this.spill = spill;
+    }
+
+    private long word(final int i) {
+        if (i == 0) return bits;
+        else if (spill != null && i <= spill.length) return spill[i - 1];
+        else return 0;
+    }
+
+    private int words() {
+        return spill == null ? 1 : 1 + spill.length;
+    }
+
+    boolean isEmpty() {
+        if (bits != 0) return false;
+        if (spill != null) {
+            for (final long w : spill) {
+                if (w != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    boolean contains(final int id) {
+        return (word(id >>> 6) & (1L << id)) != 0;
+    }
+
+    TagSet with(final int id) {
+        if (contains(id)) return this;
+        final int w = id >>> 6;
+        if (w == 0) return new TagSet(bits | (1L << id), spill);
+        final long[] s = spill == null ? new long[w] : Arrays.copyOf(spill, Math.max(w, spill.length));
+        s[w - 1] |= 1L << id;
+        return new TagSet(bits, s);
+    }
+
+    TagSet without(final int id) {
+        if (!contains(id)) return this;
+        final int w = id >>> 6;
+        if (w == 0) return new TagSet(bits & ~(1L << id), spill);
+        final long[] s = spill.clone();
+        s[w - 1] &= ~(1L << id);
+        return new TagSet(bits, s);
+    }
+
+    TagSet union(final TagSet other) {
+        if (other.isEmpty()) return this;
+        if (isEmpty()) return other;
+        final int n = Math.max(words(), other.words());
+        long[] s = null;
+        if (n > 1) {
+            s = new long[n - 1];
+            for (int i = 1; i < n; i++) s[i - 1] = word(i) | other.word(i);
+        }
+        return new TagSet(bits | other.bits, s);
+    }
+
+    /**
+     * @return true if every id in query is in one of a, b or c
+     */
+    static boolean coveredBy(final TagSet query, final TagSet a, final TagSet b, final TagSet c) {
+        for (int i = 0; i < query.words(); i++) {
+            if ((query.word(i) & ~(a.word(i) | b.word(i) | c.word(i))) != 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if some id in query is in one of a, b or c
+     */
+    static boolean meets(final TagSet query, final TagSet a, final TagSet b, final TagSet c) {
+        for (int i = 0; i < query.words(); i++) {
+            if ((query.word(i) & (a.word(i) | b.word(i) | c.word(i))) != 0) return true;
+        }
+        return false;
+    }
+}
@@ -1,14 +1,10 @@
 package com.larkery.simpleorgsync.cal.parse;
 
-import android.annotation.SuppressLint;
 import android.os.Build;
 import android.support.annotation.RequiresApi;
 
 import com.larkery.simpleorgsync.lib.Log;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
 import java.util.Objects;
 import java.util.TimeZone;
@@ -24,6 +20,8 @@ public class Timestamp {
     private static final long ONE_WEEK = 7 * ONE_DAY;
 
     private boolean modified = false;
+    // told when anything changes
+    private Heading owner;
 
     public Timestamp(TimeZone timeZone,
                      long dtStart,
@@ -41,14 +39,17 @@ public class Timestamp {
     }
 
     public long getStartTime() {
+        decode();
         return startTime;
     }
 
     public boolean isAllDay() {
+        decode();
         return allDay;
     }
 
     public long getEndTime() {
+        decode();
         if (allDay) {
             return endTime + ONE_DAY;
         } else {
@@ -57,20 +58,23 @@ public class Timestamp {
     }
 
     public void setStartTime(long startTime) {
+        decode();
         this.startTime = startTime;
-        modified = true;
+        modified();
     }
 
     public void setEndTime(long endTime) {
+        decode();
         if (allDay) {
             this.endTime = endTime - ONE_DAY;
         } else {
             this.endTime = endTime;
         }
-        modified = true;
+        modified();
     }
 
     public void setAllDay(boolean allDay) {
+        decode();
         if (this.allDay == allDay) return;
         this.allDay = allDay;
         if (this.allDay) {
@@ -78,7 +82,82 @@ public class Timestamp {
         } else {
             this.endTime = this.endTime + ONE_DAY;
         }
+        modified();
+    }
+
+    private void modified() {
         modified = true;
+        if (owner != null) owner.modified();
+    }
+
+    /**
+     * @return true if this has been changed since it was parsed or made
+     */
+    public boolean isDirty() {
+        return modified;
+    }
+
+    boolean exists() {
+        return item != null;
+    }
+
+    /**
+     * Move this timestamp into the edited text. One which was changed is read
+     * again from what was written for it, as a new parse would.
+     *
+     * @return false if what was written doesn't read back as a single timestamp
+     */
+    boolean rebase(final Document document, final CharSequence edited) {
+        if (!modified) {
+            decode();
+            item = item.rebase(document, edited);
+            return true;
+        }
+
+        final int start = document.translate(item.start(0));
+        int bracket = start;
+        while (bracket < edited.length() && edited.charAt(bracket) != '<') bracket++;
+        final Tokenizer.Item<OrgParser.Token> written = LineScanner.timestampAt(edited, start, bracket);
+        if (written == null || written.start(0) != start ||
+                written.end(0) != document.translate(item.end(0))) {
+            return false;
+        }
+
+        item = written;
+        modified = false;
+        decoded = false;
+        recurrence = RecurrenceInterval.NONE;
+        frequency = 0;
+        return true;
+    }
+
+    int end() {
+        return item == null ? -1 : item.end(0);
+    }
+
+    void detach() {
+        if (item != null) item = item.detach();
+    }
+
+    void setOwner(final Heading owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * Add this timestamp to a hash, as it is or would be written out; fields which
+     * don't show in org mode don't count.
+     *
+     * A parsed timestamp which hasn't been changed is hashed from its text, without
+     * decoding it. Since a changed one is written out as it is formatted here, it
+     * hashes the same once it has been written and read back.
+     */
+    void hashInto(final ContentHash hash) {
+        hash.add(type.ordinal());
+        if (item != null && !modified) {
+            item.hashGroup(2, hash);
+        } else {
+            hash.add(appendDate(new StringBuilder(40)));
+        }
     }
 
     public boolean isValid() {
@@ -92,10 +171,12 @@ public class Timestamp {
     }
 
     public boolean isRepeating() {
+        decode();
         return recurrence != RecurrenceInterval.NONE;
     }
 
     public String getRRULE() {
+        decode();
         return recurrence.getRRULE(frequency, repeatEndTime);
     }
 
@@ -133,12 +214,8 @@ public class Timestamp {
         return out.toString();
     }
 
-    @SuppressLint("NewApi")
-    static final SimpleDateFormat icalSDF = new SimpleDateFormat( "yyyyMMdd'T'HHmmssX");
-    static {
-        icalSDF.setTimeZone(TimeZone.getTimeZone("Z"));
-    }
     public void setRRule(final String rrule) {
+        decode();
         RecurrenceInterval newrecurrence = RecurrenceInterval.NONE;
         int newfrequency = 1;
         Long newrepeatEndTime = null;
@@ -169,11 +246,9 @@ public class Timestamp {
                             }
                             break;
                         case "UNTIL": //19971224T000000Z
-                            try {
-                                Date d = icalSDF.parse(val);
-                                newrepeatEndTime = d.getTime();
-                            } catch (ParseException e) {
-
+                            final long until = FixedDateFormat.parseICal(val);
+                            if (until != FixedDateFormat.INVALID) {
+                                newrepeatEndTime = until;
                             }
                             break;
                         case "COUNT": // TODO convert into an until
@@ -185,7 +260,7 @@ public class Timestamp {
         if (newfrequency != frequency ||
                 newrepeatEndTime != repeatEndTime ||
                 newrecurrence != recurrence) {
-            modified = true;
+            modified();
             frequency = newfrequency;
             repeatEndTime = newrepeatEndTime;
             recurrence = newrecurrence;
@@ -202,6 +277,7 @@ public class Timestamp {
             );
 
     public void setEndTimeFromDuration(String string) {
+        decode();
         long millis = 0;
 
         try {
@@ -278,9 +354,8 @@ public class Timestamp {
 
         public String getRRULE(int frequency, Long repeatEndTime) {
             if (repeatEndTime != null) {
-                Date dt = new Date(repeatEndTime);
                 return String.format("FREQ=%s;INTERVAL=%d;UNTIL=%s", this, frequency,
-                        icalSDF.format(dt));
+                        FixedDateFormat.appendICal(new StringBuilder(), repeatEndTime));
             } else {
                 return String.format("FREQ=%s;INTERVAL=%d", this, frequency);
             }
@@ -293,6 +368,7 @@ public class Timestamp {
     private Tokenizer.Item<OrgParser.Token> item;
     private Type type = Type.INVALID;
 
+    private boolean decoded = true;
     private boolean allDay;
 
     private RecurrenceInterval recurrence = RecurrenceInterval.NONE;
@@ -303,26 +379,32 @@ public class Timestamp {
 
     private Long repeatEndTime;
 
-    private static final SimpleDateFormat LONG_FORMAT =
-            new SimpleDateFormat("yyyy-MM-dd HH:mm");
-
+    /**
+     * Only the type of the timestamp is worked out here; the dates in it are
+     * decoded from the item the first time they are needed.
+     */
     public Timestamp(TimeZone tz, Tokenizer.Item<OrgParser.Token> item) {
         this.zone = tz;
         this.item = item;
+        this.decoded = false;
+
+        // a repeater is +<digits><unit>, and the digits have to fit in an int
+        if (item.has(2) && !(item.has(6) && item.length(6) - 2 > 9)) {
+            type = !item.has(1) ? Type.ACTIVE :
+                    item.groupEquals(1, "SCHEDULED: ") ? Type.SCHEDULED : Type.DEADLINE;
+        }
+    }
 
-        final String prefix = item.groups[1];
-        final String wholeDate = item.groups[2];
-        final String firstDate = item.groups[3];
-        final String firstTime = item.groups[4];
-        final String firstEndTime = item.groups[5];
-        final String repeater = item.groups[6];
-        final String secondDate = item.groups[7];
-        final String secondTime = item.groups[8];
-        final String sexpDate = item.groups[9];
+    private void decode() {
+        if (decoded) return;
+        decoded = true;
+        if (!isValid()) return;
+
+        final boolean timed = item.has(4) || item.has(8);
 
         TimeZone zoneToUse;
 
-        if (firstTime != null || secondTime != null) {
+        if (timed) {
             zoneToUse = zone;
             allDay = false;
         } else {
@@ -330,128 +412,130 @@ public class Timestamp {
             allDay = true;
         }
 
-        LONG_FORMAT.setTimeZone(zoneToUse);
+        // the groups are laid out as in OrgParser.DATE_REGEX, and the digits
+        // in them have already been checked by the scanner.
+        final int firstDate = item.start(3);
+        final int secondDate = item.start(7);
 
-        if (wholeDate != null) {
-            try {
-                Date startDate;
-                Date endDate;
+        this.startTime = millis(item, zoneToUse, firstDate, allDay ? -1 : item.start(4));
 
-                if (allDay) {
-                    startDate = LONG_FORMAT.parse(firstDate + " 00:00");
-                    if (secondDate != null) {
-                        endDate = LONG_FORMAT.parse(secondDate + " 00:00");
-                    } else {
-                        endDate = startDate;
-                    }
-                } else {
-                    startDate = LONG_FORMAT.parse(firstDate + " " +
-                            (firstTime == null ? "00:00" : firstTime)
-                    );
-
-                    if (firstEndTime != null) {
-                        endDate = LONG_FORMAT.parse(firstDate + " " + firstEndTime);
-                    } else if (secondDate != null && repeater == null) {
-                        endDate = LONG_FORMAT.parse(secondDate + " " +
-                                (secondTime == null ? "00:00" : secondTime)
-                        );
-                    } else {
-                        // duration is zero
-                        endDate = startDate;
-                    }
-                }
+        if (allDay) {
+            this.endTime = secondDate < 0 ? startTime : millis(item, zoneToUse, secondDate, -1);
+        } else if (item.has(5)) {
+            this.endTime = millis(item, zoneToUse, firstDate, item.start(5));
+        } else if (secondDate >= 0 && !item.has(6)) {
+            this.endTime = millis(item, zoneToUse, secondDate, item.start(8));
+        } else {
+            // duration is zero
+            this.endTime = startTime;
+        }
 
-                this.startTime = startDate.getTime();
-                this.endTime = endDate.getTime();
-                this.repeatEndTime = null;
-
-                // now handle rrule
-                if (repeater != null) {
-                    this.frequency = Integer.parseInt(
-                            repeater.substring(1, repeater.length()-1)
-                    );
-                    this.recurrence = RecurrenceInterval
-                            .fromOrgString(repeater.substring(repeater.length()-1));
-                    if (secondDate != null) {
-                        Date finishDate = LONG_FORMAT.parse(secondDate + " " +
-                                (secondTime == null ? "00:00" : secondTime)
-                        );
-                        this.repeatEndTime = finishDate.getTime();
-                    }
-                }
+        this.repeatEndTime = null;
 
-                type = prefix == null ? Type.ACTIVE :
-                        prefix.startsWith("SCHEDULED") ? Type.SCHEDULED : Type.DEADLINE;
-            } catch (ParseException e) {
-                type = Type.INVALID;
+        // now handle rrule
+        if (item.has(6)) {
+            final int digits = item.length(6) - 2;
+            this.frequency = item.number(item.start(6) + 1, digits);
+            this.recurrence = RecurrenceInterval
+                    .fromOrgString(item.group(6).substring(digits + 1));
+            if (secondDate >= 0) {
+                this.repeatEndTime = millis(item, zoneToUse, secondDate, item.start(8));
             }
         }
     }
 
+    /**
+     * @param date offset of a yyyy-MM-dd in the item
+     * @param time offset of a HH:mm in the item, or -1 for midnight
+     */
+    private static long millis(final Tokenizer.Item<OrgParser.Token> item, final TimeZone zone,
+                               final int date, final int time) {
+        return FixedDateFormat.toMillis(zone,
+                item.number(date, 4), item.number(date + 5, 2), item.number(date + 8, 2),
+                time < 0 ? 0 : item.number(time, 2), time < 0 ? 0 : item.number(time + 3, 2));
+    }
+
     public Type getType() {
         return type;
     }
 
     @Override
     public int hashCode() {
+        decode();
         return Objects.hash(startTime, endTime, allDay, recurrence, frequency, repeatEndTime);
     }
 
     @Override
     public String toString() {
-        LONG_FORMAT.setTimeZone(allDay ? UTC : zone);
+        return appendTo(new StringBuilder()).toString();
+    }
 
-        final String start = LONG_FORMAT.format(new Date(startTime));
-        final String startDate = start.substring(0, 10);
-        String out = "";
+    private StringBuilder appendTo(final StringBuilder out) {
+        return appendDate(out.append(type.asPrefixString()));
+    }
 
-        final String end = LONG_FORMAT.format(new Date(endTime));
-        final String endDate = end.substring(0, 10);
+    /**
+     * Append the bracketed part of the timestamp, which is everything but its SCHEDULED or DEADLINE
+     */
+    private StringBuilder appendDate(final StringBuilder out) {
+        decode();
+        final TimeZone zoneToUse = allDay ? UTC : zone;
 
         if (recurrence != RecurrenceInterval.NONE) {
-            if (startTime == endTime || (allDay && (endTime == startTime + ONE_DAY))) {
-                out = allDay ? startDate : start;
-            } else {
-                out = allDay ? startDate : (start + "-" + end.substring(11));
+            out.append('<');
+            FixedDateFormat.appendDate(out, startTime, zoneToUse);
+            if (!allDay) {
+                out.append(' ');
+                FixedDateFormat.appendTime(out, startTime, zoneToUse);
+                if (startTime != endTime) {
+                    out.append('-');
+                    FixedDateFormat.appendTime(out, endTime, zoneToUse);
+                }
             }
-            out = "<" + out + recurrence.stringFor(frequency) + ">";
+            out.append(recurrence.stringFor(frequency)).append('>');
             if (repeatEndTime != null) {
-                final String rend = LONG_FORMAT.format(new Date(repeatEndTime));
-                final String rendDate = rend.substring(0, 10);
-                out = out +"--<" + rendDate + ">";
+                out.append("--<");
+                FixedDateFormat.appendDate(out, repeatEndTime, zoneToUse);
+                out.append('>');
             }
+        } else if (allDay && (startTime == endTime || endTime == startTime + ONE_DAY ||
+                FixedDateFormat.localDay(startTime, zoneToUse) == FixedDateFormat.localDay(endTime, zoneToUse))) {
+            out.append('<');
+            FixedDateFormat.appendDate(out, startTime, zoneToUse);
+            out.append('>');
         } else if (startTime == endTime) {
+            out.append('<');
+            appendDateTime(out, startTime, zoneToUse);
+            out.append('>');
+        } else if (FixedDateFormat.localDay(startTime, zoneToUse) == FixedDateFormat.localDay(endTime, zoneToUse)) {
+            out.append('<');
+            appendDateTime(out, startTime, zoneToUse);
+            out.append('-');
+            FixedDateFormat.appendTime(out, endTime, zoneToUse);
+            out.append('>');
+        } else {
+            // these events cannot repeat, because org mode doesn't do repeating
+            // ranges I don't think. At least, it's pretty confusing.
+            out.append('<');
             if (allDay) {
-                out = startDate;
+                FixedDateFormat.appendDate(out, startTime, zoneToUse);
             } else {
-                out = start;
+                appendDateTime(out, startTime, zoneToUse);
             }
-            out = "<" + out + ">";
-        } else {
-            if (allDay && (endTime == startTime + ONE_DAY)) {
-                out = startDate;
-                out = "<" + out + ">";
-            } else if (startDate.equals(endDate)) {
-                if (allDay) {
-                    out = startDate;
-                } else {
-                    out = start + "-" + end.substring(11);
-                }
-
-                out = "<" + out + ">";
+            out.append(">--<");
+            if (allDay) {
+                FixedDateFormat.appendDate(out, endTime, zoneToUse);
             } else {
-                // these events cannot repeat, because org mode doesn't do repeating
-                // ranges I don't think. At least, it's pretty confusing.
-                if (allDay) {
-                    out = "<" + startDate + ">--<" + endDate + ">";
-                } else {
-                    out = "<" + start + ">--<" + end +">";
-                }
+                appendDateTime(out, endTime, zoneToUse);
             }
+            out.append('>');
         }
 
-        out = type.asPrefixString() + out;
-
         return out;
     }
+
+    private static void appendDateTime(final StringBuilder out, final long time, final TimeZone zone) {
+        FixedDateFormat.appendDate(out, time, zone).append(' ');
+        FixedDateFormat.appendTime(out, time, zone);
+    }
 }
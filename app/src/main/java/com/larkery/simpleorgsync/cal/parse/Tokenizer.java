@@ -1,113 +1,114 @@
 package com.larkery.simpleorgsync.cal.parse;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * Created by hinton on 13/01/18.
  */
 
 class Tokenizer<T> {
-    static class Re<T> {
-        public final int group;
-        public final int subGroups;
+    /**
+     * A token, recorded as start/end offsets into the input for each of its groups.
+     * The text of a group is only copied out of the input when it is asked for.
+     */
+    static class Item<T> {
         public final T tok;
-        public final String pattern;
+        private final CharSequence in;
+        // where in starts within the whole input, if it is only a piece of it
+        private final int base;
+        // start and end of group i are at 2i and 2i+1, or -1 if it didn't match
+        private final int[] spans;
 
-        public Re(int group, int subGroups, T tok, String pattern) {
-            this.group = group;
-            this.subGroups = subGroups;
+        public Item(T tok, CharSequence in, int base, int[] spans) {
             this.tok = tok;
-            this.pattern = pattern;
+            this.in = in;
+            this.base = base;
+            this.spans = spans;
         }
-    }
 
-    static class Item<T> {
-        public final T tok;
-        public final String[] groups;
-        public final int[] starts;
-        public final int[] ends;
-
-        public Item(Re<T> re, Matcher m) {
-            tok = re.tok;
-            groups = new String[re.subGroups+1];
-            starts = new int[re.subGroups+1];
-            ends = new int[re.subGroups+1];
-            for (int i = 0; i <= re.subGroups; i++) {
-                groups[i] = m.group(i+re.group);
-                starts[i] = m.start(i+re.group);
-                ends[i] = m.end(i+re.group);
-            }
+        public int start(int group) {
+            return spans[2 * group];
         }
 
-        @Override
-        public String toString() {
-            return String.format("<%s %s %d %d>", tok, groups[0], starts[0], ends[0]);
+        public int end(int group) {
+            return spans[2 * group + 1];
         }
-    }
-
-    final List<Re<T>> res = new LinkedList<>();
-    int nextGroup = 1;
 
-    public void add(final T tok, final String pattern) {
-        int nGroups = Pattern.compile(pattern).matcher("").groupCount();
-
-        res.add(new Re(nextGroup, nGroups, tok, pattern));
-        nextGroup += nGroups+1;
-    }
+        public int length(int group) {
+            return end(group) - start(group);
+        }
 
-    public Iterable<Item<T>> items(final CharSequence in) {
-        final Pattern pattern = getPattern();
+        public boolean has(int group) {
+            return spans[2 * group] >= 0;
+        }
 
-        return new Iterable<Item<T>>() {
-            @Override
-            public Iterator<Item<T>> iterator() {
-                final Matcher m = pattern.matcher(in);
-                return new Iterator<Item<T>>() {
-                    boolean found = m.find();
+        public String group(int group) {
+            if (!has(group)) return null;
+            return in.subSequence(start(group) - base, end(group) - base).toString();
+        }
 
-                    @Override
-                    public boolean hasNext() {
-                        return found;
-                    }
+        /**
+         * Compare the text of a group with a string, without copying it out of the input.
+         */
+        public boolean groupEquals(int group, String s) {
+            if (!has(group)) return s == null;
+            if (s == null) return false;
+            if (in instanceof Utf8Text && !Utf8Text.isAscii(s)) return s.equals(group(group));
+            if (s.length() != length(group)) return false;
+            final int start = start(group) - base;
+            for (int i = 0; i < s.length(); i++) {
+                if (in.charAt(start + i) != s.charAt(i)) return false;
+            }
+            return true;
+        }
 
-                    @Override
-                    public Item<T> next() {
-                        if (found) {
-                            for (final Re<T> re : res) {
-                                if (m.group(re.group) != null) {
-                                    final Item<T> out = new Item<>(re, m);
+        /**
+         * @return this token, moved to where a document's edits have put it in the edited text
+         */
+        Item<T> rebase(final Document document, final CharSequence edited) {
+            final int[] moved = new int[spans.length];
+            for (int i = 0; i < spans.length; i++) {
+                moved[i] = spans[i] < 0 ? spans[i] : document.translate(spans[i]);
+            }
+            return new Item<>(tok, edited, 0, moved);
+        }
 
-                                    found = m.find(m.end());
+        /**
+         * Add the text of a group to a hash, without copying it out of the input.
+         */
+        void hashGroup(int group, ContentHash hash) {
+            if (!has(group)) {
+                hash.add(null);
+            } else if (in instanceof Utf8Text &&
+                    !((Utf8Text) in).isAscii(start(group) - base, end(group) - base)) {
+                // hash the decoded text, as it would be if this had been parsed from a String
+                hash.add(group(group));
+            } else {
+                hash.add(in, start(group) - base, end(group) - base);
+            }
+        }
 
-                                    return out;
-                                }
-                            }
-                        }
-                        throw new NoSuchElementException();
-                    }
+        /**
+         * @return this token with its own copy of its text, if it is reading a buffer of UTF-8
+         * which may be unmapped or reused
+         */
+        Item<T> detach() {
+            if (!(in instanceof Utf8Text)) return this;
+            return new Item<>(tok, ((Utf8Text) in).copy(start(0) - base, end(0) - base), start(0), spans);
+        }
 
-                    @Override
-                    public void remove() {
-                        throw new UnsupportedOperationException();
-                    }
-                };
+        /**
+         * Read the decimal number made of the given number of ASCII digits at an offset in the input.
+         */
+        public int number(int offset, int digits) {
+            int n = 0;
+            for (int i = offset - base; digits > 0; digits--, i++) {
+                n = 10 * n + (in.charAt(i) - '0');
             }
-        };
-    }
+            return n;
+        }
 
-    private Pattern getPattern() {
-        final StringBuffer sb = new StringBuffer();
-        for (final Re<T> re : res) {
-            if (sb.length() > 0) sb.append("|");
-            sb.append("(");
-            sb.append(re.pattern);
-            sb.append(")");
+        @Override
+        public String toString() {
+            return String.format("<%s %s %d %d>", tok, group(0), start(0), end(0));
         }
-        return Pattern.compile(sb.toString(), Pattern.MULTILINE);
     }
 }
@@ -0,0 +1,88 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 bytes seen as characters one byte at a time, so that the parser can run over a
+ * file without decoding it. Offsets into it are byte offsets.
+ *
+ * Everything the parser looks for is ASCII, and no byte of a multi-byte character is
+ * below 0x80, so the tokens found are the same as in the decoded text. Bytes from 0x80
+ * up are shown as characters from U+0180 up, so that none of them looks like a line
+ * terminator on its own, as 0x85 would; {@link LineScanner} looks for the bytes of
+ * U+0085, U+2028 and U+2029 instead. {@link #toString()} decodes the bytes properly.
+ */
+public final class Utf8Text implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int from;
+    private final int to;
+
+    /**
+     * @param bytes the text, from its position to its limit, which mustn't change while it is being read
+     */
+    public Utf8Text(final ByteBuffer bytes) {
+        this(bytes, bytes.position(), bytes.limit());
+    }
+
+    private Utf8Text(final ByteBuffer bytes, final int from, final int to) {
+        this.bytes = bytes;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public int length() {
+        return to - from;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        final int b = bytes.get(from + index) & 0xFF;
+        return (char) (b < 0x80 ? b : b | 0x100);
+    }
+
+    @Override
+    public Utf8Text subSequence(final int start, final int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException(start + ", " + end + " of " + length());
+        }
+        return new Utf8Text(bytes, from + start, from + end);
+    }
+
+    /**
+     * @return true if there are no multi-byte characters between the given offsets
+     */
+    boolean isAscii(final int start, final int end) {
+        for (int i = from + start; i < from + end; i++) {
+            if (bytes.get(i) < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the bytes between the given offsets, copied onto the heap so that they
+     * don't hold on to this buffer
+     */
+    Utf8Text copy(final int start, final int end) {
+        final byte[] copy = new byte[end - start];
+        final ByteBuffer source = bytes.duplicate();
+        source.position(from + start);
+        source.get(copy);
+        return new Utf8Text(ByteBuffer.wrap(copy));
+    }
+
+    static boolean isAscii(final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        final ByteBuffer source = bytes.duplicate();
+        source.limit(to).position(from);
+        return StandardCharsets.UTF_8.decode(source).toString();
+    }
+}
@@ -164,10 +164,17 @@ public class Application extends android.app.Application implements SharedPrefer
             case "agenda_files":
             case "date_type":
             case "ignore_syncthing_conflicts":
+            case "skip_src_blocks":
+            case "skip_example_blocks":
+            case "skip_logbook":
             case "read_only": {
                 requestSync("a preference was changed: " + s);
             }
             break;
+            case "exclude_archive_files":
+                requestSync("a preference was changed: " + s);
+                FileJobService.register(getApplicationContext());
+                break;
             case "inotify":
                 FileJobService.register(getApplicationContext());
                 break;
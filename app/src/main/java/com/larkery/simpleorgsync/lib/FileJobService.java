@@ -53,6 +53,7 @@ public class FileJobService extends JobService {
                 final String contactsFile = prefs.getString("contacts_file", null);
                 final String agendaFiles = prefs.getString("agenda_files", null);
                 final boolean ignoreConflict = prefs.getBoolean("ignore_syncthing_conflicts", true);
+                final boolean excludeArchives = prefs.getBoolean("exclude_archive_files", false);
 
                 final Set<DocumentFile> toWatch = new HashSet<>();
                 if (contactsFile != null) {
@@ -63,7 +64,8 @@ public class FileJobService extends JobService {
                     CalSyncAdapter.collectOrgFiles(
                             CalSyncAdapter.docFile(context, agendaFiles),
                             toWatch,
-                            ignoreConflict);
+                            ignoreConflict,
+                            excludeArchives);
                 }
 
                 final ArrayList<String> paths = new ArrayList<>();
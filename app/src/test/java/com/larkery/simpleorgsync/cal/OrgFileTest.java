@@ -0,0 +1,224 @@
+package com.larkery.simpleorgsync.cal;
+
+import com.larkery.simpleorgsync.cal.parse.Document;
+import com.larkery.simpleorgsync.cal.parse.Edit;
+import com.larkery.simpleorgsync.cal.parse.Heading;
+import com.larkery.simpleorgsync.cal.parse.OrgParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrgFileTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("org", ".org");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    /**
+     * A file's channel which, like a pipe from a provider, can't seek or can't truncate.
+     */
+    private static class Refusing extends FileChannel {
+        private final FileChannel channel;
+        private final boolean seek;
+        private final boolean truncate;
+
+        Refusing(final FileChannel channel, final boolean seek, final boolean truncate) {
+            this.channel = channel;
+            this.seek = seek;
+            this.truncate = truncate;
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            if (seek) throw new IOException("Illegal seek");
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if (truncate) throw new IOException("Invalid argument");
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private String contents() throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a file, change the location of its first heading, and patch the file with that.
+     *
+     * @return whether it was patched
+     */
+    private boolean patch(final String original, final String location,
+                          final boolean refuseSeek, final boolean refuseTruncate) throws IOException {
+        Files.write(file.toPath(), bytes(original));
+        final OrgFile org = OrgFile.read(new ByteArrayInputStream(bytes(original)));
+        final List<Heading> headings = OrgParser.parse(org.text, ZONE, "c");
+        headings.get(0).setProperty("LOCATION", location);
+        final List<Edit> edits = new ArrayList<>();
+        headings.get(0).edit(edits);
+        final Document document = new Document(org.text);
+        document.apply(edits);
+
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return org.patch(new Refusing(raf.getChannel(), refuseSeek, refuseTruncate), document);
+        }
+    }
+
+    private static final String CRLF =
+            "* \u00c9v\u00e9nement\r\n:PROPERTIES:\r\n:LOCATION: Home\r\n:END:\r\n<2020-01-01>\r\n* Next\r\n";
+
+    @Test
+    public void patchesTextOfTheSameLengthInPlace() throws IOException {
+        assertTrue(patch(CRLF, "Work", false, false));
+        assertEquals(CRLF.replace("Home", "Work"), contents());
+    }
+
+    @Test
+    public void rewritesTheRestOfTheFileWhenTheLengthChanges() throws IOException {
+        assertTrue(patch(CRLF, "The office", false, false));
+        assertEquals(CRLF.replace("Home", "The office"), contents());
+        assertTrue(patch(CRLF, "Pub", false, false));
+        assertEquals(CRLF.replace("Home", "Pub"), contents());
+    }
+
+    @Test
+    public void keepsLineEndingsAndAMissingFinalNewline() throws IOException {
+        final String cr = "* A\r:PROPERTIES:\r:LOCATION: Home\r:END:\r* B";
+        assertTrue(patch(cr, "Away", false, false));
+        assertEquals(cr.replace("Home", "Away"), contents());
+
+        final String lf = "* \u2713 done\n:PROPERTIES:\n:LOCATION: \u5bb6\n:END:\n* B";
+        assertTrue(patch(lf, "Home", false, false));
+        assertEquals(lf.replace("\u5bb6", "Home"), contents());
+    }
+
+    @Test
+    public void writesNothingIfItCannotSeek() throws IOException {
+        assertFalse(patch(CRLF, "Work", true, false));
+        assertEquals(CRLF, contents());
+        assertFalse(patch(CRLF, "The office", true, false));
+        assertEquals(CRLF, contents());
+    }
+
+    @Test
+    public void writesNothingIfItCannotTruncate() throws IOException {
+        assertFalse(patch(CRLF, "The office", false, true));
+        assertEquals(CRLF, contents());
+        // which it doesn't need to when the length is the same
+        assertTrue(patch(CRLF, "Work", false, true));
+        assertEquals(CRLF.replace("Home", "Work"), contents());
+    }
+}
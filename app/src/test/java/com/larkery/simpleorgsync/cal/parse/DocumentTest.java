@@ -0,0 +1,146 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DocumentTest {
+    private static List<Edit> edits(final Edit... edits) {
+        return new ArrayList<>(Arrays.asList(edits));
+    }
+
+    private static String written(final Document document) throws IOException {
+        final StringWriter out = new StringWriter();
+        document.writeTo(out);
+        return out.toString();
+    }
+
+    @Test
+    public void readsAsTheEditedText() throws IOException {
+        final Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            final String text = EditTest.randomText(random, random.nextInt(300));
+            final List<Edit> edits = EditTest.randomEdits(random, text.length());
+            final String expected = Edit.apply(new ArrayList<>(edits), new StringBuffer(text)).toString();
+
+            final Document document = new Document(text);
+            document.apply(edits);
+
+            assertEquals(expected.length(), document.length());
+            assertEquals(expected, document.toString());
+            assertEquals(expected, written(document));
+            for (int k = 0; k < expected.length(); k++) {
+                assertEquals(expected.charAt(k), document.charAt(k));
+            }
+            final int from = expected.isEmpty() ? 0 : random.nextInt(expected.length());
+            final int to = from + random.nextInt(expected.length() - from + 1);
+            final StringWriter part = new StringWriter();
+            document.writeTo(part, from, to);
+            assertEquals(expected.substring(from, to), part.toString());
+            assertEquals(expected.substring(from, to), document.subSequence(from, to));
+        }
+    }
+
+    @Test
+    public void translatesPositionsInTheOriginal() {
+        final Random random = new Random(2);
+        for (int i = 0; i < 300; i++) {
+            final String text = EditTest.randomText(random, 1 + random.nextInt(300));
+            final List<Edit> edits = EditTest.randomEdits(random, text.length());
+            final Document document = new Document(text);
+            document.apply(new ArrayList<>(edits));
+
+            final boolean[] replaced = new boolean[text.length()];
+            for (final Edit e : edits) {
+                for (int k = e.getOffset(); k < e.getEnd(); k++) replaced[k] = true;
+            }
+            for (int k = 0; k < text.length(); k++) {
+                if (!replaced[k]) assertEquals(text.charAt(k), document.charAt(document.translate(k)));
+            }
+            assertEquals(document.length(), document.translate(text.length()));
+        }
+    }
+
+    @Test
+    public void translatesIntoEdits() {
+        final Document document = new Document("hello world");
+        document.apply(edits(new Edit(0, 6, 5, "there"), new Edit(1, 5, 0, ",")));
+        assertEquals("hello, there", document.toString());
+        // into the start of a replacement, and after an insertion
+        assertEquals(7, document.translate(8));
+        assertEquals(6, document.translate(5));
+        assertEquals(12, document.translate(11));
+    }
+
+    @Test
+    public void laterRoundsReplaceEarlierEdits() throws IOException {
+        final Document document = new Document("one two three");
+        document.apply(edits(new Edit(0, 4, 3, "TWO"), new Edit(1, 0, 0, "["), new Edit(2, 13, 0, "]")));
+        assertEquals("[one TWO three]", document.toString());
+
+        // the same text again, and an insertion at the same place, are replaced; the rest is kept
+        document.apply(edits(new Edit(0, 4, 3, "2"), new Edit(1, 0, 0, "(")));
+        assertEquals("(one 2 three]", document.toString());
+        assertEquals("(one 2 three]", written(document));
+
+        // putting text back takes an edit
+        document.apply(edits(new Edit(0, 4, 3, "two")));
+        assertEquals("(one two three]", document.toString());
+        assertEquals("one two three", document.getOriginal());
+    }
+
+    @Test
+    public void rejectsInsertionsIntoReplacedText() {
+        final Document document = new Document("one two three");
+        document.apply(edits(new Edit(0, 4, 3, "TWO")));
+        try {
+            document.apply(edits(new Edit(0, 5, 0, "x"), new Edit(1, 0, 3, "ONE")));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("one TWO three", document.toString());
+        }
+    }
+
+    @Test
+    public void findsWhereTheTextDiffers() {
+        final Random random = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            final String text = EditTest.randomText(random, random.nextInt(100)).replace('z', 'a');
+            final Document document = new Document(text);
+            assertFalse(document.isEdited());
+            assertEquals(-1, document.firstDifference());
+            assertEquals(text.length(), document.commonSuffix());
+
+            final List<Edit> edits = EditTest.randomEdits(random, text.length());
+            // some of which change nothing
+            if (random.nextBoolean() && text.length() > 2) edits.add(new Edit(edits.size(), 0, 0, ""));
+            final String expected = Edit.apply(new ArrayList<>(edits), new StringBuffer(text)).toString();
+            document.apply(new ArrayList<>(edits));
+
+            int first = 0;
+            while (first < Math.min(text.length(), expected.length()) && text.charAt(first) == expected.charAt(first)) first++;
+            if (first == text.length() && first == expected.length()) first = -1;
+            assertEquals(text + " -> " + expected, first, document.firstDifference());
+
+            if (first >= 0) {
+                int suffix = 0;
+                while (text.length() - suffix > first && expected.length() - suffix > first &&
+                        text.charAt(text.length() - suffix - 1) == expected.charAt(expected.length() - suffix - 1)) {
+                    suffix++;
+                }
+                assertEquals(text + " -> " + expected, suffix, document.commonSuffix());
+            }
+            assertTrue(document.isEdited() || edits.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class EditTest {
+    /**
+     * @return edits which don't overlap, in no particular order
+     */
+    static List<Edit> randomEdits(final Random random, final int length) {
+        final List<Edit> edits = new ArrayList<>();
+        int offset = 0;
+        while (true) {
+            offset += random.nextInt(Math.max(1, length / 5));
+            if (offset > length) break;
+            final int replaced = random.nextBoolean() ? 0 : random.nextInt(Math.min(20, length - offset) + 1);
+            edits.add(new Edit(edits.size(), offset, replaced, random.nextInt(3) == 0 ? "" : "<" + offset + ">"));
+            offset += replaced;
+            if (replaced == 0) offset++;
+        }
+        return edits;
+    }
+
+    static String randomText(final Random random, final int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('a' + random.nextInt(26)));
+        return sb.toString();
+    }
+
+    private static String streamed(final List<Edit> edits, final CharSequence source) throws IOException {
+        final StringWriter out = new StringWriter();
+        Edit.apply(edits, source, out);
+        return out.toString();
+    }
+
+    @Test
+    public void streamsTheSameTextAsItBuilds() throws IOException {
+        final Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            // some longer than a chunk
+            final String text = randomText(random, i % 10 == 0 ? 20000 + random.nextInt(5000) : random.nextInt(200));
+            final List<Edit> edits = randomEdits(random, text.length());
+            final List<Edit> shuffled = new ArrayList<>(edits);
+            Collections.shuffle(shuffled, random);
+
+            final String built = Edit.apply(new ArrayList<>(edits), new StringBuffer(text)).toString();
+            assertEquals(built, streamed(shuffled, text));
+            assertEquals(built, streamed(new ArrayList<>(edits), new StringBuffer(text)));
+            assertEquals(built, streamed(new ArrayList<>(edits), new StringBuilder(text)));
+        }
+    }
+
+    @Test
+    public void appliesEditsInPlace() throws IOException {
+        final List<Edit> edits = new ArrayList<>(Arrays.asList(
+                new Edit(0, 6, 5, "there"),
+                new Edit(1, 0, 0, "> "),
+                new Edit(2, 11, 0, "!")));
+        assertEquals("> hello there!", streamed(edits, "hello world"));
+    }
+
+    @Test
+    public void putsInsertionsBeforeReplacementsAtTheSamePlace() throws IOException {
+        final List<Edit> edits = new ArrayList<>(Arrays.asList(
+                new Edit(0, 0, 5, "HELLO"),
+                new Edit(1, 0, 0, "["),
+                new Edit(2, 0, 0, "(")));
+        assertEquals("[(HELLO world", streamed(edits, "hello world"));
+    }
+
+    @Test
+    public void rejectsOverlappingEditsBeforeWriting() throws IOException {
+        final List<Edit> edits = new ArrayList<>(Arrays.asList(
+                new Edit(0, 0, 5, "x"),
+                new Edit(1, 4, 2, "y")));
+        final StringWriter out = new StringWriter();
+        try {
+            Edit.apply(edits, "hello world", out);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("", out.toString());
+        }
+
+        // touching isn't overlapping
+        assertEquals("xy world", streamed(new ArrayList<>(Arrays.asList(
+                new Edit(0, 0, 4, "x"), new Edit(1, 4, 1, "y"))), "hello world"));
+    }
+}
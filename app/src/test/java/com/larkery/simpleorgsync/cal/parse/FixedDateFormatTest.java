@@ -0,0 +1,89 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class FixedDateFormatTest {
+    private static final String[] ZONES = {"UTC", "Europe/London", "America/New_York", "Australia/Lord_Howe", "Asia/Kolkata"};
+
+    @Test
+    public void formatsLikeSimpleDateFormat() {
+        final Random random = new Random(1);
+        for (final String id : ZONES) {
+            final TimeZone zone = TimeZone.getTimeZone(id);
+            final SimpleDateFormat date = new SimpleDateFormat("yyyy-MM-dd");
+            final SimpleDateFormat time = new SimpleDateFormat("HH:mm");
+            date.setTimeZone(zone);
+            time.setTimeZone(zone);
+            for (int i = 0; i < 20000; i++) {
+                // 1900 to 2100, with some instants right on transitions
+                long utc = (long) ((random.nextDouble() * 200 - 70) * 365.25 * FixedDateFormat.ONE_DAY);
+                if (i % 4 == 0) utc -= utc % FixedDateFormat.ONE_HOUR;
+                assertEquals(id + " " + utc, date.format(utc),
+                        FixedDateFormat.appendDate(new StringBuilder(), utc, zone).toString());
+                assertEquals(id + " " + utc, time.format(utc),
+                        FixedDateFormat.appendTime(new StringBuilder(), utc, zone).toString());
+            }
+        }
+    }
+
+    @Test
+    public void convertsWallClockTimesLikeGregorianCalendar() {
+        final Random random = new Random(2);
+        for (final String id : ZONES) {
+            final TimeZone zone = TimeZone.getTimeZone(id);
+            final GregorianCalendar calendar = new GregorianCalendar(zone);
+            for (int i = 0; i < 20000; i++) {
+                final int year = 1950 + random.nextInt(120);
+                final int month = 1 + random.nextInt(12);
+                final int day = 1 + random.nextInt(31);
+                final int hour = random.nextInt(24);
+                final int minute = random.nextInt(60);
+                calendar.clear();
+                calendar.set(year, month - 1, day, hour, minute);
+                assertEquals(id + " " + year + "-" + month + "-" + day + " " + hour + ":" + minute,
+                        calendar.getTimeInMillis(),
+                        FixedDateFormat.toMillis(zone, year, month, day, hour, minute));
+            }
+        }
+    }
+
+    @Test
+    public void convertsTimesAroundClockChanges() {
+        final TimeZone london = TimeZone.getTimeZone("Europe/London");
+        // 01:30 doesn't happen on 2020-03-29, and is taken in GMT
+        assertEquals(1585445400000L, FixedDateFormat.toMillis(london, 2020, 3, 29, 1, 30));
+        // 01:30 happens twice on 2020-10-25, and is taken the second time, in GMT
+        assertEquals(1603589400000L, FixedDateFormat.toMillis(london, 2020, 10, 25, 1, 30));
+        assertEquals("02:30", FixedDateFormat.appendTime(new StringBuilder(), 1585445400000L, london).toString());
+    }
+
+    @Test
+    public void readsAndWritesICalTimes() {
+        assertEquals(882921600000L, FixedDateFormat.parseICal("19971224T000000Z"));
+        assertEquals(882921600000L - FixedDateFormat.ONE_HOUR * 2, FixedDateFormat.parseICal("19971224T000000+02"));
+        assertEquals(882921600000L + FixedDateFormat.ONE_HOUR, FixedDateFormat.parseICal("19971224T000000-01;x"));
+        assertEquals("19971224T000000Z", FixedDateFormat.appendICal(new StringBuilder(), 882921600000L).toString());
+        assertEquals("19650301T235959Z", FixedDateFormat.appendICal(new StringBuilder(),
+                FixedDateFormat.parseICal("19650301T235959Z")).toString());
+
+        assertEquals(FixedDateFormat.INVALID, FixedDateFormat.parseICal("19971224"));
+        assertEquals(FixedDateFormat.INVALID, FixedDateFormat.parseICal("19971224T000000"));
+        assertEquals(FixedDateFormat.INVALID, FixedDateFormat.parseICal("1997122xT000000Z"));
+        assertEquals(FixedDateFormat.INVALID, FixedDateFormat.parseICal("19971224T000000+1"));
+    }
+
+    @Test
+    public void rollsOverFieldsWhichAreOutOfRange() {
+        assertEquals(FixedDateFormat.days(2020, 3, 1), FixedDateFormat.days(2020, 2, 30));
+        assertEquals(FixedDateFormat.days(2021, 1, 1), FixedDateFormat.days(2020, 13, 1));
+        assertEquals(FixedDateFormat.days(2019, 12, 31), FixedDateFormat.days(2020, 1, 0));
+        assertEquals(0, FixedDateFormat.days(1970, 1, 1));
+    }
+}
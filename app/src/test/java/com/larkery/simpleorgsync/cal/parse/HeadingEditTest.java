@@ -0,0 +1,91 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeadingEditTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+    private static final long HOUR = FixedDateFormat.ONE_HOUR;
+
+    private static final String FILE =
+            "* One   :a:\n" +
+            "SCHEDULED: <2020-01-01 Wed 10:00>\n" +
+            ":PROPERTIES:\n" +
+            ":ID:   abc\n" +
+            ":LOCATION: Home\n" +
+            ":END:\n" +
+            "* Two\n" +
+            "<2020-01-02>\n";
+
+    private static List<Edit> edits(final List<Heading> headings) {
+        final List<Edit> edits = new ArrayList<>();
+        for (final Heading h : headings) h.edit(edits);
+        return edits;
+    }
+
+    private static String write(final List<Heading> headings) {
+        return Edit.apply(edits(headings), new StringBuffer(FILE)).toString();
+    }
+
+    @Test
+    public void parsedHeadingsAreClean() {
+        final List<Heading> headings = OrgParser.parse(FILE, ZONE, "c");
+        for (final Heading h : headings) {
+            assertFalse(h.isDirty());
+            for (final Timestamp ts : h.getTimestamps()) {
+                ts.getStartTime();
+                assertFalse(ts.isDirty());
+            }
+            h.getProperty("ID");
+        }
+        assertEquals(0, edits(headings).size());
+    }
+
+    @Test
+    public void writesOnlyTheChangedProperty() {
+        final List<Heading> headings = OrgParser.parse(FILE, ZONE, "c");
+        headings.get(0).setProperty("LOCATION", "Work");
+        assertTrue(headings.get(0).isDirty());
+        assertFalse(headings.get(1).isDirty());
+        assertEquals(1, edits(headings).size());
+        assertEquals(FILE.replace("Home", "Work"), write(headings));
+    }
+
+    @Test
+    public void writesOnlyTheChangedTimestamp() {
+        final List<Heading> headings = OrgParser.parse(FILE, ZONE, "c");
+        final Timestamp ts = headings.get(0).getTimestamps().get(0);
+        ts.setEndTime(ts.getStartTime() + 2 * HOUR);
+        ts.setStartTime(ts.getStartTime() + HOUR);
+        assertTrue(headings.get(0).isDirty());
+        assertEquals(1, edits(headings).size());
+        // the untouched ID keeps its odd spacing
+        assertEquals(FILE.replace("<2020-01-01 Wed 10:00>", "<2020-01-01 11:00-12:00>"), write(headings));
+    }
+
+    @Test
+    public void writesTheHeadingLineWhenItChanges() {
+        final List<Heading> headings = OrgParser.parse(FILE, ZONE, "c");
+        headings.get(1).setHeading("Three");
+        headings.get(1).addTag("b");
+        assertEquals(FILE.replace("* Two\n", "* Three :b:\n"), write(headings));
+
+        final List<Heading> again = OrgParser.parse(FILE, ZONE, "c");
+        again.get(0).removeTag("a");
+        assertEquals(FILE.replace("* One   :a:\n", "* One   \n"), write(again));
+    }
+
+    @Test
+    public void addsAPropertiesDrawerWhenThereIsNone() {
+        final List<Heading> headings = OrgParser.parse(FILE, ZONE, "c");
+        headings.get(1).setProperty("ID", "new");
+        assertEquals(FILE.replace("* Two\n", "* Two\n:PROPERTIES:\n:ID: new\n:END:\n"), write(headings));
+    }
+}
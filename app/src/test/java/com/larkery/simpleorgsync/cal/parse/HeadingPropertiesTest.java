@@ -0,0 +1,93 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeadingPropertiesTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+
+    private static Heading parse(final String input) {
+        final List<Heading> headings = OrgParser.parse(input, ZONE, "c");
+        assertEquals(1, headings.size());
+        return headings.get(0);
+    }
+
+    @Test
+    public void readsPropertiesInOrder() {
+        final Heading h = parse("* T\n:PROPERTIES:\n:Zed: 1\n:ID: abc\n:LOCATION: The pub\n:my-key x: y z\n:END:\n");
+        assertEquals("abc", h.getProperty("ID"));
+        assertEquals("The pub", h.getProperty("LOCATION"));
+        assertEquals("y z", h.getProperty("my-key x"));
+        assertEquals("1", h.getProperty("Zed"));
+        assertTrue(h.hasProperty("Zed"));
+        assertFalse(h.hasProperty("id"));
+        assertNull(h.getProperty("missing"));
+        assertEquals(":PROPERTIES:\n:Zed: 1\n:ID: abc\n:LOCATION: The pub\n:my-key x: y z\n:END:\n",
+                h.propertiesString());
+    }
+
+    @Test
+    public void laterDuplicatesReplaceEarlierOnesWhereTheyAre() {
+        final Heading h = parse("* T\n:PROPERTIES:\n:A: 1\n:B: 2\n:A: 3\n:END:\n");
+        assertEquals("3", h.getProperty("A"));
+        assertEquals(":PROPERTIES:\n:A: 3\n:B: 2\n:END:\n", h.propertiesString());
+    }
+
+    @Test
+    public void checksumIsAsItWasWithAMap() {
+        final Heading h = parse("* Title :t:\n:PROPERTIES:\n:ID: abc\n:Other: x\n:END:\n<2020-01-01>\n");
+        final Map<String, Property> map = new LinkedHashMap<>();
+        map.put("ID", new Property(0, "ID", "abc"));
+        map.put("Other", new Property(0, "Other", "x"));
+        assertEquals("Title:[t]:" + map + ":[<2020-01-01>]:1", h.checksum());
+    }
+
+    @Test
+    public void setsPropertiesOldAndNew() {
+        final Heading h = parse("* T\n:PROPERTIES:\n:ID: abc\n:END:\n");
+        assertFalse(h.isDirty());
+        h.setProperty("ID", "def");
+        assertTrue(h.isDirty());
+        for (int i = 0; i < 5; i++) {
+            h.setProperty("K" + i, "v" + i);
+        }
+        assertEquals("def", h.getProperty("ID"));
+        assertEquals("v4", h.getProperty("K4"));
+        assertEquals(":PROPERTIES:\n:ID: def\n:K0: v0\n:K1: v1\n:K2: v2\n:K3: v3\n:K4: v4\n:END:\n",
+                h.propertiesString());
+    }
+
+    @Test
+    public void hashChangesWithProperties() {
+        final Heading a = parse("* T\n:PROPERTIES:\n:ID: abc\n:END:\n");
+        final Heading b = parse("* T\n:PROPERTIES:\n:ID: abd\n:END:\n");
+        final Heading c = parse("* T\n:PROPERTIES:\n:ID: abc\n:END:\n");
+        assertEquals(a.hash(), c.hash());
+        assertFalse(a.hash().equals(b.hash()));
+
+        final String before = a.hash();
+        a.setProperty("ID", "abd");
+        assertEquals(b.hash(), a.hash());
+        a.setProperty("ID", "abc");
+        assertEquals(before, a.hash());
+    }
+
+    @Test
+    public void hashDoesNotDependOnWhetherAKeyIsCommon() {
+        // the common keys are held as strings, and the rest read from the input
+        final Heading parsed = parse("* T\n:PROPERTIES:\n:ID: 1\n:Rare: 2\n:END:\n");
+        final Heading made = parse("* T\n");
+        made.setProperty("ID", "1");
+        made.setProperty("Rare", "2");
+        assertEquals(parsed.hash(), made.hash());
+    }
+}
@@ -0,0 +1,98 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeadingTagsTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+
+    private static List<Heading> parse(final String input) {
+        return OrgParser.parse(input, ZONE, "c");
+    }
+
+    private static HashSet<String> set(final String... tags) {
+        return new HashSet<>(Arrays.asList(tags));
+    }
+
+    @Test
+    public void keepsOwnTagsInOrder() {
+        final Heading h = parse("* Title :z:a:m:\n").get(0);
+        assertEquals(Arrays.asList("z", "a", "m"), Arrays.asList(h.getTags().toArray()));
+        assertEquals(":z:a:m:", h.tagsString());
+    }
+
+    @Test
+    public void inheritsTagsFromParentAndFile() {
+        final List<Heading> headings = parse(
+                "#+FILETAGS: :file:\n* A :a:\n** B :b:\n*** C\n* D\n");
+        assertTrue(headings.get(1).hasTag("a"));
+        final Heading c = headings.get(2);
+        assertTrue(c.hasTag("b"));
+        assertTrue(c.hasTag("file"));
+        assertFalse(c.hasTag("d"));
+        // inherited tags aren't its own
+        assertEquals(Collections.<String>emptySet(), c.getTags());
+
+        final Heading d = headings.get(3);
+        assertFalse(d.hasTag("a"));
+        assertTrue(d.hasTag("file"));
+    }
+
+    @Test
+    public void answersTagQueries() {
+        final Heading b = parse("#+FILETAGS: :file:\n* A :a:\n** B :b:\n").get(1);
+        assertTrue(b.hasAllTags(set("a", "b", "file")));
+        assertTrue(b.hasAllTags(set()));
+        assertFalse(b.hasAllTags(set("a", "unknown")));
+        assertTrue(b.hasAnyTags(set("unknown", "file")));
+        assertFalse(b.hasAnyTags(set("unknown")));
+        assertFalse(b.hasAnyTags(set()));
+    }
+
+    @Test
+    public void handlesMoreTagsThanFitInAWord() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append("* H").append(i).append(" :t").append(i).append(":\n");
+        }
+        sb.append("* Last :t99:t3:t70:\n");
+        final List<Heading> headings = parse(sb.toString());
+        final Heading last = headings.get(100);
+        assertTrue(last.hasTag("t70"));
+        assertTrue(last.hasAllTags(set("t99", "t3", "t70")));
+        assertFalse(last.hasAnyTags(set("t69", "t2")));
+        assertTrue(headings.get(80).hasTag("t80"));
+        assertFalse(headings.get(80).hasTag("t81"));
+    }
+
+    @Test
+    public void addsAndRemovesTags() {
+        final Heading h = parse("* Title :a:b:\n").get(0);
+        h.addTag("a");
+        assertFalse(h.isDirty());
+        h.addTag("c");
+        assertTrue(h.isDirty());
+        h.removeTag("a");
+        h.removeTag("unknown");
+        assertEquals(":b:c:", h.tagsString());
+        assertFalse(h.hasTag("a"));
+        assertTrue(h.hasTag("c"));
+    }
+
+    @Test
+    public void sharesNothingBetweenParses() {
+        final Heading a = parse("* A :x:\n").get(0);
+        final Heading b = parse("* B :y:\n").get(0);
+        assertFalse(a.hasTag("y"));
+        assertFalse(b.hasTag("x"));
+    }
+}
@@ -0,0 +1,193 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The scanner has to find exactly the tokens that the regular expressions in
+ * {@link OrgParser.Token} would, with the same groups, and so the same headings.
+ */
+public class LineScannerTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+
+    static final String[] CORPUS = {
+            "",
+            "* Heading\n",
+            "* Heading",
+            "*bold* is not a heading\n* \n** \n",
+            "* One :a:b:\n** Two   :c:\n*** Three :not tags\n**** Four : x :\n",
+            "* Tags only :a:\n*   Spaced    title   :x@y:%z:\n",
+            "* CRLF\r\nSCHEDULED: <2020-01-01 Wed 10:00>\r\n:PROPERTIES:\r\n:ID: abc\r\n:END:\r\n",
+            "* CR\r<2020-01-01>\r** Two\r\n<2020-01-02>\n",
+            "* Other terminators\u2028<2020-01-01>\u0085** Two\u2029:PROPERTIES:\n",
+            "* Timestamps\n" +
+                    "SCHEDULED: <2020-01-01 Wed 10:00> DEADLINE: <2020-01-03 Fri 09:00-10:00>\n" +
+                    "<2020-03-29 Sun 01:30> <2020-10-25 Sun 01:30>\n" +
+                    "<2020-01-01 +1w>--<2020-03-01> <2020-01-01 Wed 10:00 +2d>\n" +
+                    "<2020-01-01>--<2020-01-05> <2020-01-01 Wed 09:00>--<2020-01-02 Thu 10:00>\n" +
+                    "<%%(diary-float t 4 2)> <%%()> <%%(x\n)> <%%(a)b)>\n" +
+                    "<2020-01-01 Wedn> <2020-1-01> <2020-01-01 10:0> [2020-01-01] <<2020-01-01>>\n" +
+                    "DEADLINE:<2020-01-01> xSCHEDULED: <2020-01-01> <2020-01-01 +12345678901d>\n",
+            "* Drawers\n" +
+                    ":PROPERTIES:\n" +
+                    "  :ID: 1234\n" +
+                    ":LOCATION:    The pub  \n" +
+                    ":KEY-1 x: value\n" +
+                    ": no key\n" +
+                    ":EMPTY:\n" +
+                    ":SPACE: \n" +
+                    "\t:END:\t\n" +
+                    ":LOGBOOK:\n" +
+                    "CLOCK: [2020-01-01 Wed 10:00]--[2020-01-01 Wed 11:00] =>  1:00\n" +
+                    ":END:\n",
+            "#+FILETAGS: :work:a:\n#+CATEGORY: other\n#+FILETAGS:\n#+CATEGORY:   \n#+TITLE: x\n* After\n",
+            "* Blocks\n" +
+                    "#+BEGIN_SRC elisp\n" +
+                    "* not really a heading\n" +
+                    "<2020-01-01>\n" +
+                    "#+END_SRC\n" +
+                    "#+begin_example\n" +
+                    ":PROPERTIES:\n" +
+                    "#+end_example\n"
+    };
+
+    static final String[] FRAGMENTS = {
+            "*", "**", "***", " ", "  ", "\t", "foo", "bar baz", ":a:", ":a:b:", "::", ":::", ":x y:",
+            "\n", "\n", "\n", "\n", "\r", "\r\n", "\u2028", "\u0085",
+            "<2020-01-01>", "<2020-01-01 Wed>", "<2020-01-01 Wed 10:00>", "<2020-01-01 10:00-11:30>", "<2020-01-01 +1w>",
+            "<2020-01-01 Wed 10:00 +2d>", "<2020-01-01>--<2020-01-05>", "<2020-01-01 Wed 09:00>--<2020-01-02 Thu 10:00>",
+            "<2020-01-01 Wedn>", "<2020-1-01>", "<2020-01-01 10:0>", "<%%(diary-float t 4 2)>", "<%%()>", "<%%(x\n)>",
+            "SCHEDULED: ", " DEADLINE: ", "DEADLINE: ", "<", ">", "--", "--<", "[2020-01-01]",
+            ":PROPERTIES:", ":END:", ":ID:", ":LOCATION:", ": ", ":KEY-1 x:", "value", "#+FILETAGS:", "#+CATEGORY:",
+            "#+TITLE:", "#", ":LOGBOOK:", "#+BEGIN_SRC", "#+END_SRC", "@home", "%x", "-", "+1d", "09:00"
+    };
+
+    @Test
+    public void findsTheSameTokensAsTheGrammar() {
+        for (final String input : CORPUS) {
+            assertEquals(escape(input), grammarTokens(input), scannerTokens(input));
+        }
+    }
+
+    @Test
+    public void findsTheSameTokensAsTheGrammarInRandomInput() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            final String input = randomInput(random);
+            assertEquals(escape(input), grammarTokens(input), scannerTokens(input));
+        }
+    }
+
+    @Test
+    public void makesTheSameHeadingsAsTheGrammar() {
+        for (final String input : CORPUS) {
+            assertEquals(escape(input), describe(parseWithGrammar(input)),
+                    describe(OrgParser.parse(input, ZONE, "cat")));
+        }
+        final Random random = new Random(2);
+        for (int i = 0; i < 2000; i++) {
+            final String input = randomInput(random);
+            assertEquals(escape(input), describe(parseWithGrammar(input)),
+                    describe(OrgParser.parse(input, ZONE, "cat")));
+        }
+    }
+
+    @Test
+    public void corpusHasHeadingsWithTimestampsAndProperties() {
+        int timestamps = 0;
+        int properties = 0;
+        for (final String input : CORPUS) {
+            for (final Heading h : OrgParser.parse(input, ZONE, "cat")) {
+                timestamps += h.getTimestamps().size();
+                if (h.hasProperty("ID")) properties++;
+            }
+        }
+        assertTrue(timestamps > 10);
+        assertTrue(properties >= 2);
+    }
+
+    static String randomInput(final Random random) {
+        final StringBuilder sb = new StringBuilder();
+        final int n = random.nextInt(40);
+        for (int k = 0; k < n; k++) sb.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+        return sb.toString();
+    }
+
+    static List<Heading> parseWithGrammar(final String input) {
+        final OrgParser.State state = new OrgParser.State(ZONE, "cat", null, new TagDictionary());
+        for (final Tokenizer.Item<OrgParser.Token> item : TokenGrammar.INSTANCE.items(input)) {
+            state.accept(item);
+        }
+        for (final Heading h : state.headings) {
+            h.addInheritedTags(state.filetags);
+        }
+        return state.headings;
+    }
+
+    static List<String> describe(final List<Heading> headings) {
+        final List<String> out = new ArrayList<>();
+        for (final Heading h : headings) {
+            out.add(h.getCategory() + "|" + h.checksum() + "|" + h.hash() + "|" + h.getOffset() + "|" + h.getEnd());
+        }
+        return out;
+    }
+
+    private static List<String> grammarTokens(final String input) {
+        final List<String> out = new ArrayList<>();
+        for (final Tokenizer.Item<OrgParser.Token> item : TokenGrammar.INSTANCE.items(input)) {
+            out.add(render(item));
+        }
+        return out;
+    }
+
+    private static List<String> scannerTokens(final String input) {
+        final List<String> out = new ArrayList<>();
+        final LineScanner scanner = new LineScanner(input, OrgParser.Skip.nothing());
+        for (Tokenizer.Item<OrgParser.Token> item = scanner.next(); item != null; item = scanner.next()) {
+            out.add(render(item));
+        }
+        return out;
+    }
+
+    static String render(final Tokenizer.Item<OrgParser.Token> item) {
+        final StringBuilder sb = new StringBuilder(item.tok.toString());
+        for (int i = 0; i <= groups(item.tok); i++) {
+            sb.append(' ').append(item.start(i)).append(',').append(item.end(i)).append('=').append(item.group(i));
+        }
+        return sb.toString();
+    }
+
+    private static int groups(final OrgParser.Token tok) {
+        switch (tok) {
+            case HEADING:
+                return 3;
+            case DATETIME:
+                return 9;
+            case PROPERTY:
+                return 2;
+            case FILETAGS:
+            case CATEGORY:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    static String escape(final String s) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '\n') sb.append("\\n");
+            else if (c < ' ' || c > '~') sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.toString();
+    }
+}
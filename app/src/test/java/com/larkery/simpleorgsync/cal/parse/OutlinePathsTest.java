@@ -0,0 +1,122 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class OutlinePathsTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+    private static final String FILE = "content://org/file.org";
+
+    /**
+     * @return the positional IDs of the headings of a file, by their line, as the sync gets them
+     */
+    private static Map<String, String> streamed(final String input) {
+        final OutlinePaths paths = new OutlinePaths(FILE);
+        final Map<String, String> ids = new LinkedHashMap<>();
+        final List<Heading> headings = new ArrayList<>();
+        OrgParser.parse(ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8)), ZONE, "c",
+                OrgParser.Skip.nothing(), new OrgParser.Listener() {
+                    @Override
+                    public void opened(Heading heading) {
+                        paths.add(heading);
+                    }
+
+                    @Override
+                    public void heading(Heading heading) {
+                        headings.add(heading);
+                    }
+                });
+        for (final Heading h : headings) {
+            ids.put(h.stars() + " " + h.getTitle() + " @" + h.getOffset(), h.syncID(true));
+        }
+        return ids;
+    }
+
+    private static String id(final int ordinal, final String... titles) {
+        final ContentHash hash = new ContentHash().add(FILE);
+        for (final String t : titles) hash.add(t);
+        return ContentHash.hex(hash.value()) + "-" + ordinal;
+    }
+
+    private static String idOf(final Map<String, String> ids, final String line) {
+        for (final Map.Entry<String, String> e : ids.entrySet()) {
+            if (e.getKey().startsWith(line + " @")) return e.getValue();
+        }
+        throw new AssertionError("no " + line + " in " + ids.keySet());
+    }
+
+    @Test
+    public void pathsIncludeAncestorTitles() {
+        final Map<String, String> ids = streamed("* A\n** B\n*** C\n** D\n* E\n");
+        assertEquals(id(0, "A"), idOf(ids, "* A"));
+        assertEquals(id(0, "A", "B"), idOf(ids, "** B"));
+        assertEquals(id(0, "A", "B", "C"), idOf(ids, "*** C"));
+        assertEquals(id(0, "A", "D"), idOf(ids, "** D"));
+        assertEquals(id(0, "E"), idOf(ids, "* E"));
+    }
+
+    @Test
+    public void sameTitlesUnderDifferentParentsDiffer() {
+        final Map<String, String> ids = streamed("* Work\n** Meeting\n* Home\n** Meeting\n");
+        final List<String> meetings = new ArrayList<>();
+        for (final Map.Entry<String, String> e : ids.entrySet()) {
+            if (e.getKey().startsWith("** Meeting")) meetings.add(e.getValue());
+        }
+        assertEquals(2, meetings.size());
+        assertFalse(meetings.get(0).equals(meetings.get(1)));
+        assertEquals(id(0, "Work", "Meeting"), meetings.get(0));
+        assertEquals(id(0, "Home", "Meeting"), meetings.get(1));
+    }
+
+    @Test
+    public void repeatedPathsAreNumberedInDocumentOrder() {
+        final Map<String, String> ids = streamed("* P\n** X\n*** Y\n** X\n* P\n** X\n");
+        assertEquals(id(0, "P"), ids.get("* P @0"));
+        assertEquals(id(0, "P", "X"), ids.get("** X @4"));
+        assertEquals(id(0, "P", "X", "Y"), ids.get("*** Y @9"));
+        assertEquals(id(1, "P", "X"), ids.get("** X @15"));
+        assertEquals(id(1, "P"), ids.get("* P @20"));
+        assertEquals(id(2, "P", "X"), ids.get("** X @24"));
+    }
+
+    @Test
+    public void idsOnlyChangeWithThePathToAHeading() {
+        final Map<String, String> before = streamed("* A\n** B\n<2020-01-01>\n* C\n** D\n");
+        final Map<String, String> edited = streamed("* A\n** B\n<2020-01-02>\n** New\n* C\n** D\n");
+        assertEquals(idOf(before, "** B"), idOf(edited, "** B"));
+        assertEquals(idOf(before, "** D"), idOf(edited, "** D"));
+
+        final Map<String, String> renamed = streamed("* A2\n** B\n<2020-01-01>\n* C\n** D\n");
+        assertFalse(idOf(before, "** B").equals(idOf(renamed, "** B")));
+        assertEquals(idOf(before, "** D"), idOf(renamed, "** D"));
+    }
+
+    @Test
+    public void streamedIdsAreAsForTheWholeFile() {
+        final String input = "* A\n** B\n*** B\n** B\n* A\n*** Deep\n** B\n";
+        final OutlinePaths paths = new OutlinePaths(FILE);
+        final Map<String, String> whole = new LinkedHashMap<>();
+        for (final Heading h : OrgParser.parse(input, ZONE, "c")) {
+            paths.add(h);
+            whole.put(h.getOffset() + "", h.syncID(true));
+        }
+        final Map<String, String> streamed = new LinkedHashMap<>();
+        for (final Map.Entry<String, String> e : streamed(input).entrySet()) {
+            streamed.put(e.getKey().substring(e.getKey().indexOf('@') + 1), e.getValue());
+        }
+        assertEquals(whole.size(), streamed.size());
+        for (final String offset : whole.keySet()) {
+            assertEquals(offset, whole.get(offset), streamed.get(offset));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class OutlineTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+
+    private static final String FILE =
+            "* A\n" +
+            "** B\n" +
+            "<2020-01-01>\n" +
+            "*** C\n" +
+            "** D\n" +
+            "* E\n" +
+            "** Same\n" +
+            "** Same\n" +
+            "<2020-01-02>\n";
+
+    private static Outline.Snapshot snapshot(final String text) {
+        return new Outline(OrgParser.parse(text, ZONE, "c")).snapshot();
+    }
+
+    private static List<String> changed(final Outline.Snapshot before, final String text) {
+        final List<Heading> changed = new ArrayList<>();
+        new Outline(OrgParser.parse(text, ZONE, "c")).changedSince(before, changed);
+        final List<String> titles = new ArrayList<>();
+        for (final Heading h : changed) titles.add(h.getTitle());
+        return titles;
+    }
+
+    private static List<String> list(final String... titles) {
+        final List<String> out = new ArrayList<>();
+        for (final String t : titles) out.add(t);
+        return out;
+    }
+
+    @Test
+    public void linksParentsAndChildren() {
+        final List<Heading> headings = OrgParser.parse("* A\n** B\n**** C\n** D\n* E\n", ZONE, "c");
+        final Outline outline = new Outline(headings);
+        assertEquals(2, outline.getRoots().size());
+        assertSame(headings.get(0), headings.get(1).getParent());
+        assertSame(headings.get(1), headings.get(2).getParent());
+        assertSame(headings.get(0), headings.get(3).getParent());
+        assertNull(headings.get(4).getParent());
+        assertEquals(2, headings.get(0).getChildren().size());
+    }
+
+    @Test
+    public void findsNothingInAnUnchangedFile() {
+        assertEquals(list(), changed(snapshot(FILE), FILE));
+    }
+
+    @Test
+    public void findsOnlyTheHeadingWhichChanged() {
+        assertEquals(list("B"), changed(snapshot(FILE), FILE.replace("2020-01-01", "2020-01-03")));
+        assertEquals(list("Same"), changed(snapshot(FILE), FILE.replace("2020-01-02", "2020-01-03")));
+        assertEquals(list("C"), changed(snapshot(FILE), FILE.replace("*** C\n", "*** C :tag:\n")));
+    }
+
+    @Test
+    public void findsNewHeadingsAndEverythingUnderThem() {
+        assertEquals(list("New", "Child"), changed(snapshot(FILE), FILE + "* New\n** Child\n"));
+        // renaming a heading makes it and its subtree new
+        assertEquals(list("A2", "B", "C", "D"), changed(snapshot(FILE), FILE.replace("* A\n", "* A2\n")));
+        // a third Same is new, but the other two are as they were
+        assertEquals(list("Same"), changed(snapshot(FILE), FILE + "** Same\n"));
+    }
+
+    @Test
+    public void findsNothingWhenSiblingsAreReordered() {
+        final String reordered = "* E\n** Same\n** Same\n<2020-01-02>\n* A\n** D\n** B\n<2020-01-01>\n*** C\n";
+        assertEquals(list(), changed(snapshot(FILE), reordered));
+    }
+
+    @Test
+    public void findsHeadingsChangedAfterParsing() {
+        final List<Heading> headings = OrgParser.parse(FILE, ZONE, "c");
+        final Outline outline = new Outline(headings);
+        final Outline.Snapshot before = outline.snapshot();
+
+        headings.get(3).setProperty("ID", "x");
+        final List<Heading> changed = new ArrayList<>();
+        outline.changedSince(before, changed);
+        assertEquals(1, changed.size());
+        assertSame(headings.get(3), changed.get(0));
+    }
+}
@@ -0,0 +1,52 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelParseTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+
+    private static String bigFile() {
+        final StringBuilder sb = new StringBuilder("#+FILETAGS: :first:\n");
+        for (int i = 0; sb.length() < 2 * 1024 * 1024; i++) {
+            if (i == 3000) sb.append("#+CATEGORY: middle\n");
+            if (i == 6000) sb.append("#+FILETAGS: :late:\n");
+            sb.append("* Top ").append(i).append(i % 7 == 0 ? " :top:\n" : "\n");
+            sb.append("SCHEDULED: <2020-01-").append(10 + i % 18).append(" Fri 10:00>\n");
+            sb.append("** Child ").append(i).append(" :child:\n");
+            sb.append(":PROPERTIES:\n:ID: ").append(i).append("\n:END:\n");
+            sb.append("<2020-02-01 Sat 09:00>--<2020-02-02 Sun 10:00>\n");
+            sb.append("*** Grandchild\nSome text which is not * a heading\n");
+            if (i % 11 == 0) sb.append("#+BEGIN_SRC\n* inside\n#+END_SRC\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void givesTheSameHeadingsAsParsingInOnePiece() {
+        final String input = bigFile();
+        final OrgParser.Skip skip = new OrgParser.Skip(EnumSet.of(OrgParser.Block.SRC));
+        final List<Heading> serial = OrgParser.parse(input, ZONE, "file", skip);
+        final List<Heading> parallel = OrgParser.parseInParallel(input, ZONE, "file",
+                new OrgParser.Skip(EnumSet.of(OrgParser.Block.SRC)));
+
+        assertEquals(LineScannerTest.describe(serial), LineScannerTest.describe(parallel));
+        assertEquals("file", parallel.get(0).getCategory());
+        assertEquals("middle", parallel.get(parallel.size() - 1).getCategory());
+        assertTrue(parallel.get(0).hasTag("late"));
+        assertTrue(parallel.get(parallel.size() - 1).hasTag("first"));
+    }
+
+    @Test
+    public void smallInputIsParsedInOnePiece() {
+        final String input = "* One\n** Two :a:\n#+CATEGORY: x\n* Three\n";
+        assertEquals(LineScannerTest.describe(OrgParser.parse(input, ZONE, "c")),
+                LineScannerTest.describe(OrgParser.parseInParallel(input, ZONE, "c", OrgParser.Skip.nothing())));
+    }
+}
@@ -0,0 +1,112 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class RebaseTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+    private static final long HOUR = FixedDateFormat.ONE_HOUR;
+
+    private static String file(final int n) {
+        final StringBuilder sb = new StringBuilder("#+CATEGORY: work\n");
+        for (int i = 0; i < n; i++) {
+            sb.append("* Heading ").append(i).append(" :t").append(i % 3).append(":\n");
+            sb.append("SCHEDULED: <2020-01-").append(10 + i % 18).append(" Fri 10:00>\n");
+            sb.append(":PROPERTIES:\n:ID: id-").append(i).append("\n:LOCATION: Room ").append(i).append("\n:END:\n");
+            sb.append("Some text\n");
+            sb.append("** Child ").append(i).append("\n<2020-02-01 Sat>--<2020-02-03 Mon>\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Write the changes to the headings of a file, and move them onto what was written.
+     */
+    private static String rebase(final String text, final List<Heading> headings) {
+        final List<Edit> edits = new ArrayList<>();
+        for (final Heading h : headings) h.edit(edits);
+        final Document document = new Document(text);
+        document.apply(edits);
+        final StringBuffer written = document.rebase(headings);
+        return written == null ? null : written.toString();
+    }
+
+    @Test
+    public void rebasedHeadingsAreAsIfParsedAgain() {
+        final Random random = new Random(1);
+        for (int round = 0; round < 50; round++) {
+            final String text = file(20);
+            final List<Heading> headings = OrgParser.parse(text, ZONE, "c");
+            for (final Heading h : headings) {
+                switch (random.nextInt(5)) {
+                    case 0:
+                        // a new property would change the shape of a heading without one
+                        if (h.hasProperty("LOCATION")) {
+                            h.setProperty("LOCATION", "Somewhere " + random.nextInt(1000));
+                        }
+                        break;
+                    case 1:
+                        final Timestamp ts = h.getTimestamps().get(0);
+                        ts.setStartTime(ts.getStartTime() + random.nextInt(48) * HOUR);
+                        break;
+                    case 2:
+                        h.setHeading(h.getTitle() + " changed");
+                        break;
+                    default:
+                        break;
+                }
+            }
+            final String written = rebase(text, headings);
+            assertNotNull(written);
+            assertEquals(LineScannerTest.describe(OrgParser.parse(written, ZONE, "c")),
+                    LineScannerTest.describe(headings));
+            for (final Heading h : headings) assertFalse(h.isDirty());
+        }
+    }
+
+    @Test
+    public void rebasedHeadingsCanBeChangedAgain() {
+        final String text = file(3);
+        final List<Heading> headings = OrgParser.parse(text, ZONE, "c");
+        headings.get(0).setProperty("LOCATION", "First");
+        final String once = rebase(text, headings);
+
+        headings.get(0).setProperty("LOCATION", "Second");
+        final Timestamp ts = headings.get(2).getTimestamps().get(0);
+        ts.setStartTime(ts.getStartTime() + HOUR);
+        final String twice = rebase(once, headings);
+
+        final List<Heading> reparsed = OrgParser.parse(once, ZONE, "c");
+        reparsed.get(0).setProperty("LOCATION", "Second");
+        final Timestamp rts = reparsed.get(2).getTimestamps().get(0);
+        rts.setStartTime(rts.getStartTime() + HOUR);
+        assertEquals(rebase(once, reparsed), twice);
+        assertEquals(LineScannerTest.describe(OrgParser.parse(twice, ZONE, "c")),
+                LineScannerTest.describe(headings));
+    }
+
+    @Test
+    public void givesUpWhenAHeadingChangesShape() {
+        final String text = "* A\n* B :x:\n<2020-01-01>\n";
+        final List<Heading> newProperty = OrgParser.parse(text, ZONE, "c");
+        newProperty.get(0).setProperty("ID", "new");
+        assertNull(rebase(text, newProperty));
+
+        final List<Heading> lostTags = OrgParser.parse(text, ZONE, "c");
+        lostTags.get(1).removeTag("x");
+        assertNull(rebase(text, lostTags));
+
+        final List<Heading> newTags = OrgParser.parse(text, ZONE, "c");
+        newTags.get(0).addTag("y");
+        assertNull(rebase(text, newTags));
+    }
+}
@@ -0,0 +1,196 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SkipTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+
+    private static final String BLOCKS =
+            "* Code\n" +
+            "#+BEGIN_SRC elisp\n" +
+            "<2020-01-01>\n" +
+            ":PROPERTIES:\n" +
+            ":ID: not-this\n" +
+            ":END:\n" +
+            "#+END_SRC\n" +
+            "<2020-01-02>\n" +
+            "* Example\n" +
+            "  #+begin_example\n" +
+            "<2020-01-03>\n" +
+            "  #+end_example  \n" +
+            ":PROPERTIES:\n" +
+            ":ID: this\n" +
+            ":END:\n" +
+            "* Clocked\n" +
+            ":LOGBOOK:\n" +
+            "CLOCK: [2020-01-01 Wed 10:00]--[2020-01-01 Wed 11:00] =>  1:00\n" +
+            "<2020-01-04>\n" +
+            ":END:\n" +
+            "<2020-01-05>\n" +
+            "* Unterminated\n" +
+            "#+BEGIN_SRC\n" +
+            "<2020-01-06>\n" +
+            "* Ends the block\n" +
+            "<2020-01-07>\n";
+
+    private static OrgParser.Skip skip(final OrgParser.Block... blocks) {
+        final EnumSet<OrgParser.Block> set = EnumSet.noneOf(OrgParser.Block.class);
+        for (final OrgParser.Block b : blocks) set.add(b);
+        return new OrgParser.Skip(set);
+    }
+
+    private static String describe(final Heading h) {
+        final StringBuilder sb = new StringBuilder(h.getTitle());
+        for (final Timestamp ts : h.getTimestamps()) sb.append(' ').append(ts);
+        if (h.hasProperty("ID")) sb.append(" ID=").append(h.getProperty("ID"));
+        return sb.append(" @").append(h.getOffset()).toString();
+    }
+
+    private static List<String> describe(final List<Heading> headings) {
+        final List<String> out = new ArrayList<>();
+        for (final Heading h : headings) out.add(describe(h));
+        return out;
+    }
+
+    private static List<Heading> read(final String input, final OrgParser.Skip skip) throws IOException {
+        final List<Heading> headings = new ArrayList<>();
+        OrgParser.parse(new StringReader(input), ZONE, "c", skip, new OrgParser.Listener() {
+            @Override
+            public void opened(Heading heading) {
+            }
+
+            @Override
+            public void heading(Heading heading) {
+                headings.add(heading);
+            }
+        });
+        return headings;
+    }
+
+    @Test
+    public void readsBlocksWhenNotSkippingThem() {
+        final List<Heading> headings = OrgParser.parse(BLOCKS, ZONE, "c");
+        assertEquals("Code <2020-01-01> <2020-01-02> ID=not-this @0", describe(headings.get(0)));
+        assertEquals(5, headings.size());
+    }
+
+    @Test
+    public void skipsTheBodiesOfBlocks() {
+        final OrgParser.Skip skip = skip(OrgParser.Block.SRC, OrgParser.Block.EXAMPLE, OrgParser.Block.LOGBOOK);
+        final List<Heading> headings = OrgParser.parse(BLOCKS, ZONE, "c", skip);
+        final List<Heading> all = OrgParser.parse(BLOCKS, ZONE, "c");
+
+        assertEquals(5, headings.size());
+        assertEquals("Code <2020-01-02> @0", describe(headings.get(0)));
+        assertEquals("Example ID=this @" + all.get(1).getOffset(), describe(headings.get(1)));
+        assertEquals("Clocked <2020-01-05> @" + all.get(2).getOffset(), describe(headings.get(2)));
+        assertEquals("Unterminated @" + all.get(3).getOffset(), describe(headings.get(3)));
+        assertEquals("Ends the block <2020-01-07> @" + all.get(4).getOffset(), describe(headings.get(4)));
+        assertTrue(skip.getSkipped() > 0);
+    }
+
+    @Test
+    public void onlySkipsTheBlocksAskedFor() {
+        final List<Heading> headings = OrgParser.parse(BLOCKS, ZONE, "c", skip(OrgParser.Block.LOGBOOK));
+        assertEquals("Code <2020-01-01> <2020-01-02> ID=not-this @0", describe(headings.get(0)));
+        assertEquals("Clocked <2020-01-05> @" + headings.get(2).getOffset(), describe(headings.get(2)));
+    }
+
+    @Test
+    public void countsWhatWasSkipped() {
+        final OrgParser.Skip skip = skip(OrgParser.Block.SRC);
+        OrgParser.parse("* A\n#+BEGIN_SRC\nabc\n#+END_SRC\n* B\n", ZONE, "c", skip);
+        assertEquals("#+BEGIN_SRC\nabc\n#+END_SRC\n".length(), skip.getSkipped());
+    }
+
+    @Test
+    public void blockMarkersNeedTheirOwnLine() {
+        final List<Heading> headings = OrgParser.parse(
+                "* A\n#+BEGIN_SRCX\n<2020-01-01>\n:LOGBOOK: x\n<2020-01-02>\n", ZONE, "c",
+                skip(OrgParser.Block.SRC, OrgParser.Block.LOGBOOK));
+        assertEquals(2, headings.get(0).getTimestamps().size());
+    }
+
+    @Test
+    public void skipsTheSameWhenReading() throws IOException {
+        final OrgParser.Skip skip = skip(OrgParser.Block.SRC, OrgParser.Block.EXAMPLE, OrgParser.Block.LOGBOOK);
+        final OrgParser.Skip readSkip = skip(OrgParser.Block.SRC, OrgParser.Block.EXAMPLE, OrgParser.Block.LOGBOOK);
+        final List<String> parsed = describe(OrgParser.parse(BLOCKS, ZONE, "c", skip));
+        final List<String> read = describe(read(BLOCKS, readSkip));
+        // the reader gives headings as their subtrees end, which for these is in order
+        assertEquals(parsed, read);
+        assertEquals(skip.getSkipped(), readSkip.getSkipped());
+        assertFalse(read.isEmpty());
+    }
+
+    private static final String ARCHIVED =
+            "* Live\n" +
+            "** Old :a:ARCHIVE:b:\n" +
+            "<2020-01-01>\n" +
+            ":PROPERTIES:\n" +
+            ":ID: old\n" +
+            ":END:\n" +
+            "*** Older\n" +
+            "#+CATEGORY: moved\n" +
+            "**** Oldest\n" +
+            "#+FILETAGS: :late:\n" +
+            "** Sibling\n" +
+            "<2020-01-02>\n" +
+            "* Next\n";
+
+    @Test
+    public void skipsArchivedSubtrees() {
+        final OrgParser.Skip skip = skip(OrgParser.Block.ARCHIVE);
+        final List<Heading> headings = OrgParser.parse(ARCHIVED, ZONE, "c", skip);
+        final List<Heading> all = OrgParser.parse(ARCHIVED, ZONE, "c");
+
+        assertEquals(6, all.size());
+        assertEquals(4, headings.size());
+        assertEquals("Live @0", describe(headings.get(0)));
+        // the archived heading itself is kept, for its tags and place in the outline
+        assertEquals("Old @" + all.get(1).getOffset(), describe(headings.get(1)));
+        assertTrue(headings.get(1).hasTag("ARCHIVE"));
+        assertEquals("Sibling <2020-01-02> @" + all.get(4).getOffset(), describe(headings.get(2)));
+        assertEquals("Next @" + all.get(5).getOffset(), describe(headings.get(3)));
+        assertTrue(skip.getSkipped() > 0);
+    }
+
+    @Test
+    public void readsKeywordsInArchivedSubtrees() {
+        final List<Heading> headings = OrgParser.parse(ARCHIVED, ZONE, "c", skip(OrgParser.Block.ARCHIVE));
+        final List<Heading> all = OrgParser.parse(ARCHIVED, ZONE, "c");
+        for (int i = 0; i < headings.size(); i++) {
+            assertTrue(headings.get(i).hasTag("late"));
+        }
+        assertEquals("c", headings.get(1).getCategory());
+        assertEquals("moved", headings.get(2).getCategory());
+        assertEquals(all.get(4).getCategory(), headings.get(2).getCategory());
+    }
+
+    @Test
+    public void keepsArchivedSubtreesUnlessAsked() {
+        final List<Heading> headings = OrgParser.parse(ARCHIVED, ZONE, "c", skip(OrgParser.Block.SRC));
+        assertEquals(6, headings.size());
+        assertEquals("Old <2020-01-01> ID=old @" + headings.get(1).getOffset(), describe(headings.get(1)));
+    }
+
+    @Test
+    public void skipsArchivedSubtreesWhenReading() throws IOException {
+        final List<String> parsed = describe(OrgParser.parse(ARCHIVED, ZONE, "c", skip(OrgParser.Block.ARCHIVE)));
+        final List<String> read = new ArrayList<>();
+        for (final Heading h : read(ARCHIVED, skip(OrgParser.Block.ARCHIVE))) read.add(describe(h));
+        assertEquals(parsed.size(), read.size());
+        assertTrue(read.containsAll(parsed));
+    }
+}
@@ -0,0 +1,91 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TagSetTest {
+    private static TagSet random(final Random random, final BitSet model) {
+        TagSet set = TagSet.EMPTY;
+        final int n = random.nextInt(6);
+        for (int i = 0; i < n; i++) {
+            // mostly in the first word, sometimes well past it
+            final int id = random.nextBoolean() ? random.nextInt(64) : random.nextInt(300);
+            set = set.with(id);
+            model.set(id);
+        }
+        if (random.nextInt(3) == 0 && !model.isEmpty()) {
+            final int id = model.nextSetBit(random.nextInt(model.length()));
+            if (id >= 0) {
+                set = set.without(id);
+                model.clear(id);
+            }
+        }
+        return set;
+    }
+
+    private static void assertSame(final BitSet model, final TagSet set) {
+        for (int id = 0; id < 320; id++) {
+            assertEquals("id " + id, model.get(id), set.contains(id));
+        }
+        assertEquals(model.isEmpty(), set.isEmpty());
+    }
+
+    @Test
+    public void behavesLikeABitSet() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 5000; i++) {
+            final BitSet ma = new BitSet();
+            final BitSet mb = new BitSet();
+            final TagSet a = random(random, ma);
+            final TagSet b = random(random, mb);
+            assertSame(ma, a);
+            assertSame(mb, b);
+
+            final BitSet union = (BitSet) ma.clone();
+            union.or(mb);
+            assertSame(union, a.union(b));
+        }
+    }
+
+    @Test
+    public void answersQueriesLikeABitSet() {
+        final Random random = new Random(2);
+        for (int i = 0; i < 5000; i++) {
+            final BitSet mq = new BitSet();
+            final BitSet ma = new BitSet();
+            final BitSet mb = new BitSet();
+            final BitSet mc = new BitSet();
+            final TagSet q = random(random, mq);
+            final TagSet a = random(random, ma);
+            final TagSet b = random(random, mb);
+            final TagSet c = random(random, mc);
+
+            final BitSet all = (BitSet) ma.clone();
+            all.or(mb);
+            all.or(mc);
+            final BitSet missing = (BitSet) mq.clone();
+            missing.andNot(all);
+            assertEquals(missing.isEmpty(), TagSet.coveredBy(q, a, b, c));
+            assertEquals(mq.intersects(all), TagSet.meets(q, a, b, c));
+        }
+    }
+
+    @Test
+    public void isNotChangedByMakingOthers() {
+        final TagSet a = TagSet.EMPTY.with(3).with(100);
+        final TagSet b = a.with(200).without(3);
+        assertSame(bits(3, 100), a);
+        assertSame(bits(100, 200), b);
+        assertSame(new BitSet(), TagSet.EMPTY);
+    }
+
+    private static BitSet bits(final int... ids) {
+        final BitSet b = new BitSet();
+        for (final int id : ids) b.set(id);
+        return b;
+    }
+}
@@ -0,0 +1,164 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimestampTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+    private static final long HOUR = FixedDateFormat.ONE_HOUR;
+    private static final long DAY = FixedDateFormat.ONE_DAY;
+    // 2020-01-01T00:00:00Z
+    private static final long NEW_YEAR = 1577836800000L;
+
+    private static List<Timestamp> stamps(final String text) {
+        final List<Heading> headings = OrgParser.parse("* Heading\n" + text + "\n", ZONE, "c");
+        assertEquals(1, headings.size());
+        return headings.get(0).getTimestamps();
+    }
+
+    private static Timestamp stamp(final String text) {
+        final List<Timestamp> stamps = stamps(text);
+        assertEquals(text, 1, stamps.size());
+        return stamps.get(0);
+    }
+
+    @Test
+    public void decodesTimedStamps() {
+        final Timestamp ts = stamp("SCHEDULED: <2020-01-01 Wed 10:00-11:30>");
+        assertEquals(Timestamp.Type.SCHEDULED, ts.getType());
+        assertFalse(ts.isAllDay());
+        assertEquals(NEW_YEAR + 10 * HOUR, ts.getStartTime());
+        assertEquals(NEW_YEAR + 11 * HOUR + HOUR / 2, ts.getEndTime());
+        assertFalse(ts.isRepeating());
+        assertEquals("SCHEDULED: <2020-01-01 10:00-11:30>", ts.toString());
+    }
+
+    @Test
+    public void decodesInTheZoneOfTheParse() {
+        // BST
+        final Timestamp ts = stamp("<2020-07-01 12:00>");
+        assertEquals(1593601200000L, ts.getStartTime());
+        assertEquals(ts.getStartTime(), ts.getEndTime());
+    }
+
+    @Test
+    public void decodesDaysAndRanges() {
+        final Timestamp day = stamp(" DEADLINE: <2020-01-01>");
+        assertEquals(Timestamp.Type.DEADLINE, day.getType());
+        assertTrue(day.isAllDay());
+        assertEquals(NEW_YEAR, day.getStartTime());
+        assertEquals(NEW_YEAR + DAY, day.getEndTime());
+
+        final Timestamp days = stamp("<2020-01-01 Wed>--<2020-01-03 Fri>");
+        assertTrue(days.isAllDay());
+        assertEquals(NEW_YEAR + 3 * DAY, days.getEndTime());
+        assertEquals("<2020-01-01>--<2020-01-03>", days.toString());
+
+        final Timestamp times = stamp("<2020-01-01 Wed 22:00>--<2020-01-02 Thu 01:00>");
+        assertFalse(times.isAllDay());
+        assertEquals(NEW_YEAR + 22 * HOUR, times.getStartTime());
+        assertEquals(NEW_YEAR + 25 * HOUR, times.getEndTime());
+        assertEquals("PT3H", times.getDuration());
+    }
+
+    @Test
+    public void decodesRepeaters() {
+        final Timestamp ts = stamp("<2020-01-01 Wed 10:00 +2w>--<2020-03-01>");
+        assertTrue(ts.isRepeating());
+        assertEquals("FREQ=WEEKLY;INTERVAL=2;UNTIL=20200301T000000Z", ts.getRRULE());
+        assertEquals("<2020-01-01 10:00 +2w>--<2020-03-01>", ts.toString());
+
+        final Timestamp daily = stamp("<2020-01-01 +10d>");
+        assertEquals("FREQ=DAILY;INTERVAL=10", daily.getRRULE());
+        assertTrue(daily.isAllDay());
+    }
+
+    @Test
+    public void ignoresRepeatersTooBigToRead() {
+        assertEquals(0, stamps("<2020-01-01 +12345678901d>").size());
+        assertEquals(1, stamps("<2020-01-01 +123456789d>").size());
+    }
+
+    @Test
+    public void ignoresSExpressions() {
+        assertEquals(0, stamps("<%%(diary-float t 4 2)>").size());
+    }
+
+    @Test
+    public void isOnlyDirtyWhenChanged() {
+        final Timestamp ts = stamp("<2020-01-01 Wed 10:00>");
+        ts.getStartTime();
+        ts.getRRULE();
+        assertFalse(ts.isDirty());
+
+        ts.setStartTime(NEW_YEAR + 9 * HOUR);
+        assertTrue(ts.isDirty());
+        assertEquals("<2020-01-01 09:00-10:00>", ts.toString());
+
+        ts.setRRule("FREQ=MONTHLY;INTERVAL=1;UNTIL=20200601T000000Z");
+        assertEquals("<2020-01-01 09:00-10:00 +1m>--<2020-06-01>", ts.toString());
+    }
+
+    @Test
+    public void switchesBetweenAllDayAndTimed() {
+        final Timestamp ts = stamp("<2020-01-01>");
+        ts.setAllDay(false);
+        ts.setStartTime(NEW_YEAR + 9 * HOUR);
+        ts.setEndTime(NEW_YEAR + 10 * HOUR);
+        assertEquals("<2020-01-01 09:00-10:00>", ts.toString());
+        ts.setEndTimeFromDuration("P1D");
+        assertEquals(NEW_YEAR + 33 * HOUR, ts.getEndTime());
+    }
+
+    private static long hash(final Timestamp ts) {
+        final ContentHash hash = new ContentHash();
+        ts.hashInto(hash);
+        return hash.value();
+    }
+
+    @Test
+    public void hashesParsedTextAsItsFormattedValue() {
+        final String[] stamps = {
+                "SCHEDULED: <2020-01-01 10:00-11:30>", "<2020-01-01>--<2020-01-03>",
+                "<2020-01-01 10:00 +2w>--<2020-03-01>", "<2020-01-01 22:00>--<2020-01-02 01:00>"
+        };
+        for (final String text : stamps) {
+            final Timestamp parsed = stamp(text);
+            final Timestamp made = stamp(text);
+            // changing it and back makes it hash its formatted text
+            made.setStartTime(made.getStartTime() + HOUR);
+            made.setStartTime(made.getStartTime() - HOUR);
+            assertTrue(made.isDirty());
+            assertEquals(text, made.toString());
+            assertEquals(text, hash(parsed), hash(made));
+        }
+    }
+
+    @Test
+    public void hashChangesWithTheStamp() {
+        final Timestamp a = stamp("<2020-01-01 10:00>");
+        final long before = hash(a);
+        assertFalse(before == hash(stamp("SCHEDULED: <2020-01-01 10:00>")));
+        assertFalse(before == hash(stamp("<2020-01-01 10:01>")));
+
+        a.setEndTime(a.getStartTime() + HOUR);
+        assertFalse(before == hash(a));
+        assertEquals(hash(stamp(a.toString())), hash(a));
+    }
+
+    @Test
+    public void changedHeadingsHashAsTheyDoWhenReadBack() {
+        final String text = "* T\nSCHEDULED: <2020-01-01 Wed 10:00>\n";
+        final Heading h = OrgParser.parse(text, ZONE, "c").get(0);
+        final Timestamp ts = h.getTimestamps().get(0);
+        ts.setStartTime(ts.getStartTime() + HOUR);
+        final Heading reread = OrgParser.parse("* T\n" + ts + "\n", ZONE, "c").get(0);
+        assertEquals(reread.hash(), h.hash());
+    }
+}
@@ -0,0 +1,53 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The alternation of the patterns in {@link OrgParser.Token}, as the parser used to
+ * tokenize with, kept here as the reference that {@link LineScanner} has to agree with.
+ */
+class TokenGrammar {
+    static final TokenGrammar INSTANCE = new TokenGrammar();
+
+    private final OrgParser.Token[] tokens = OrgParser.Token.values();
+    // the group of the whole of each token's pattern, and how many groups it has inside
+    private final int[] groups = new int[tokens.length];
+    private final int[] subGroups = new int[tokens.length];
+    private final Pattern pattern;
+
+    private TokenGrammar() {
+        final StringBuilder sb = new StringBuilder();
+        int nextGroup = 1;
+        for (int i = 0; i < tokens.length; i++) {
+            if (sb.length() > 0) sb.append("|");
+            sb.append("(").append(tokens[i].pattern).append(")");
+            groups[i] = nextGroup;
+            subGroups[i] = Pattern.compile(tokens[i].pattern).matcher("").groupCount();
+            nextGroup += subGroups[i] + 1;
+        }
+        pattern = Pattern.compile(sb.toString(), Pattern.MULTILINE);
+    }
+
+    List<Tokenizer.Item<OrgParser.Token>> items(final CharSequence in) {
+        final List<Tokenizer.Item<OrgParser.Token>> items = new ArrayList<>();
+        final Matcher m = pattern.matcher(in);
+        boolean found = m.find();
+        while (found) {
+            for (int t = 0; t < tokens.length; t++) {
+                if (m.start(groups[t]) < 0) continue;
+                final int[] spans = new int[2 * (subGroups[t] + 1)];
+                for (int i = 0; i <= subGroups[t]; i++) {
+                    spans[2 * i] = m.start(groups[t] + i);
+                    spans[2 * i + 1] = m.end(groups[t] + i);
+                }
+                items.add(new Tokenizer.Item<>(tokens[t], in, 0, spans));
+                break;
+            }
+            found = m.find(m.end());
+        }
+        return items;
+    }
+}
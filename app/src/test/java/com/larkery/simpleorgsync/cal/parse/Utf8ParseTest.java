@@ -0,0 +1,100 @@
+package com.larkery.simpleorgsync.cal.parse;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parsing the UTF-8 bytes of a file has to find the same headings as parsing its text,
+ * at the byte offsets of the same characters.
+ */
+public class Utf8ParseTest {
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/London");
+
+    private static final String[] FRAGMENTS = {
+            "\u00e9", "\u5bb6", "\ud83d\ude00", "\u0085", "\u2028", "\u2029", "\u0080", "\u00c2", "\u2027", "\u202a"
+    };
+
+    @Test
+    public void findsTheSameHeadingsInTheCorpus() throws IOException {
+        for (final String input : LineScannerTest.CORPUS) {
+            assertSame(input);
+        }
+    }
+
+    @Test
+    public void endsLinesAtMultiByteTerminators() throws IOException {
+        assertSame("* One\u0085* Two\u2028* Three\u2029** Four :a:\u2028<2020-01-01>\u0085:PROPERTIES:\n");
+        assertSame("* \u00e9\u0085<2020-01-01 Wed 10:00>\u2029:PROPERTIES:\u2028:ID: \u5bb6\u0085:END:\n");
+        assertEquals(3, bytes("* A\u2028* B\u2029* C").size());
+        assertEquals(2, bytes("* A\u0085* B").size());
+    }
+
+    @Test
+    public void findsTheSameHeadingsInRandomInput() throws IOException {
+        final Random random = new Random(3);
+        for (int i = 0; i < 3000; i++) {
+            final StringBuilder input = new StringBuilder(LineScannerTest.randomInput(random));
+            for (int k = random.nextInt(6); k > 0; k--) {
+                input.insert(random.nextInt(input.length() + 1), FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            }
+            assertSame(input.toString());
+        }
+    }
+
+    private static void assertSame(final String input) throws IOException {
+        assertEquals(LineScannerTest.escape(input), describe(chars(input), input), describe(bytes(input), null));
+    }
+
+    private static List<Heading> chars(final String input) throws IOException {
+        final List<Heading> headings = new ArrayList<>();
+        OrgParser.parse(new StringReader(input), ZONE, "cat", OrgParser.Skip.nothing(), collect(headings));
+        return headings;
+    }
+
+    private static List<Heading> bytes(final String input) {
+        final List<Heading> headings = new ArrayList<>();
+        OrgParser.parse(ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8)), ZONE, "cat",
+                OrgParser.Skip.nothing(), collect(headings));
+        return headings;
+    }
+
+    private static OrgParser.Listener collect(final List<Heading> headings) {
+        return new OrgParser.Listener() {
+            @Override
+            public void opened(Heading heading) {
+            }
+
+            @Override
+            public void heading(Heading heading) {
+                headings.add(heading);
+            }
+        };
+    }
+
+    /**
+     * @param text the text the headings were parsed from, if their offsets are in its characters
+     */
+    private static List<String> describe(final List<Heading> headings, final String text) {
+        final List<String> out = new ArrayList<>();
+        for (final Heading h : headings) {
+            out.add(h.getTitle() + "|" + h.getTags() + "|" + h.propertiesString() + "|" + h.getTimestamps() + "|" +
+                    h.checksum() + "|" + h.hash() + "|" + bytes(text, h.getOffset()) + "|" + bytes(text, h.getEnd()));
+        }
+        return out;
+    }
+
+    private static int bytes(final String text, final int offset) {
+        if (text == null || offset < 0) return offset;
+        return text.substring(0, offset).getBytes(StandardCharsets.UTF_8).length;
+    }
+}